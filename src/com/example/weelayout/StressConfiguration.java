@@ -0,0 +1,299 @@
+package com.example.weelayout;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.vaadin.weelayout.WeeLayout;
+import org.vaadin.weelayout.WeeLayout.Direction;
+
+import com.vaadin.terminal.ThemeResource;
+import com.vaadin.ui.AbstractOrderedLayout;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.Layout;
+import com.vaadin.ui.NativeButton;
+import com.vaadin.ui.VerticalLayout;
+
+/**
+ * Parameters of the recursively split layout used to compare WeeLayout with
+ * the core ordered layouts. Each level contains a button, a label and
+ * <code>breadth</code> nested layouts, down to <code>depth</code> levels.
+ * <p>
+ * The configuration can be read from URL parameters, e.g.
+ * <code>?depth=4&amp;breadth=2&amp;core=true&amp;relative=false</code>, so that
+ * the same trees can be loaded in a browser and painted offline by the
+ * benchmarks. The depth and breadth read from parameters are limited to
+ * {@link #MAX_DEPTH} and {@link #MAX_BREADTH}, the largest trees the
+ * benchmarks use, since the size of the tree grows exponentially with the
+ * depth.
+ */
+@SuppressWarnings("serial")
+public class StressConfiguration implements Serializable {
+
+    /** The largest depth read from a parameter */
+    public static final int MAX_DEPTH = 5;
+
+    /** The largest breadth read from a parameter */
+    public static final int MAX_BREADTH = 2;
+
+    private int depth = 1;
+    private int breadth = 1;
+    private boolean vertical = false;
+    private boolean core = false;
+    private boolean clipping = true;
+    private boolean smartRelatives = false;
+    private boolean relativeSizes = true;
+    private boolean layoutBoundaries = false;
+
+    public StressConfiguration() {
+    }
+
+    public StressConfiguration(int depth, int breadth, boolean vertical,
+            boolean core, boolean clipping, boolean smartRelatives,
+            boolean relativeSizes) {
+        setDepth(depth);
+        setBreadth(breadth);
+        this.vertical = vertical;
+        this.core = core;
+        this.clipping = clipping;
+        this.smartRelatives = smartRelatives;
+        this.relativeSizes = relativeSizes;
+    }
+
+    /**
+     * Reads the configuration from request parameters. Parameters that are
+     * not given, or have an invalid value, keep their current values. Too
+     * large depths and breadths are cut to the maximums.
+     *
+     * @param parameters
+     *            the parameters, as given to a ParameterHandler
+     * @return <code>true</code> if any of the parameters was a configuration
+     *         parameter
+     */
+    public boolean readParameters(Map<String, String[]> parameters) {
+        boolean found = false;
+        for (Map.Entry<String, String[]> entry : parameters.entrySet()) {
+            String[] values = entry.getValue();
+            if (values == null || values.length == 0) {
+                continue;
+            }
+            String name = entry.getKey();
+            String value = values[0];
+            boolean matched = true;
+            try {
+                matched = readParameter(name, value);
+            } catch (IllegalArgumentException e) {
+                Logger.getLogger(StressConfiguration.class.getName()).warning(
+                        "Ignored invalid parameter " + name + "=" + value
+                                + ": " + e.getMessage());
+            }
+            found |= matched;
+        }
+        return found;
+    }
+
+    /**
+     * @return <code>false</code> if the parameter is not a configuration
+     *         parameter
+     * @throws IllegalArgumentException
+     *             if the value is invalid
+     */
+    private boolean readParameter(String name, String value) {
+        if ("depth".equals(name)) {
+            setDepth(Math.min(Integer.parseInt(value), MAX_DEPTH));
+        } else if ("breadth".equals(name)) {
+            setBreadth(Math.min(Integer.parseInt(value), MAX_BREADTH));
+        } else if ("vertical".equals(name)) {
+            vertical = Boolean.parseBoolean(value);
+        } else if ("core".equals(name)) {
+            core = Boolean.parseBoolean(value);
+        } else if ("clip".equals(name)) {
+            clipping = Boolean.parseBoolean(value);
+        } else if ("smart".equals(name)) {
+            smartRelatives = Boolean.parseBoolean(value);
+        } else if ("relative".equals(name)) {
+            relativeSizes = Boolean.parseBoolean(value);
+        } else if ("boundary".equals(name)) {
+            layoutBoundaries = Boolean.parseBoolean(value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new component tree for this configuration.
+     */
+    public Layout createLayout() {
+        Layout l = split(depth);
+        l.setSizeFull();
+        return l;
+    }
+
+    private Layout split(int deep) {
+        Layout l;
+        if (core) {
+            l = vertical ? new VerticalLayout() : new HorizontalLayout();
+        } else {
+            WeeLayout wl = new WeeLayout(vertical ? Direction.VERTICAL
+                    : Direction.HORIZONTAL);
+            wl.setClipping(clipping);
+            wl.setSmartRelativeSizes(smartRelatives);
+            // Only the relative sized layouts have a defined size
+            wl.setLayoutBoundary(layoutBoundaries && relativeSizes);
+            l = wl;
+        }
+
+        NativeButton b = new NativeButton("Button");
+        if (relativeSizes) {
+            setSize(b, deep > 0 ? "10%" : "100%", deep > 0 ? "50%" : "100%");
+        } else {
+            setSize(b, "100px", "30px");
+        }
+        add(l, b, Alignment.MIDDLE_CENTER, 1);
+
+        Label label = new Label("Label");
+        label.setCaption("Label caption");
+        label.setIcon(new ThemeResource("../runo/icons/16/document.png"));
+        label.addStyleName("foobar");
+        if (relativeSizes) {
+            setSize(label, "10%", "100%");
+        } else {
+            setSize(label, "100px", null);
+        }
+        add(l, label, null, 1);
+
+        if (deep > 0) {
+            for (int i = 0; i < breadth; i++) {
+                Layout w = split(deep - 1);
+                if (relativeSizes) {
+                    setSize(w, (80f / breadth) + "%", "100%");
+                } else {
+                    w.setSizeUndefined();
+                }
+                add(l, w, null, 8f / breadth);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Sets the size of the component along and across the direction.
+     */
+    private void setSize(Component c, String along, String across) {
+        if (vertical) {
+            c.setHeight(along);
+            c.setWidth(across);
+        } else {
+            c.setWidth(along);
+            c.setHeight(across);
+        }
+    }
+
+    private void add(Layout l, Component c, Alignment alignment,
+            float expandRatio) {
+        if (core) {
+            AbstractOrderedLayout ol = (AbstractOrderedLayout) l;
+            ol.addComponent(c);
+            if (alignment != null) {
+                ol.setComponentAlignment(c, alignment);
+            }
+            if (relativeSizes) {
+                ol.setExpandRatio(c, expandRatio);
+            }
+        } else if (alignment != null) {
+            ((WeeLayout) l).addComponent(c, alignment);
+        } else {
+            l.addComponent(c);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth can not be negative");
+        }
+        this.depth = depth;
+    }
+
+    public int getBreadth() {
+        return breadth;
+    }
+
+    public void setBreadth(int breadth) {
+        if (breadth < 1) {
+            throw new IllegalArgumentException("Breadth must be at least 1");
+        }
+        this.breadth = breadth;
+    }
+
+    public boolean isVertical() {
+        return vertical;
+    }
+
+    public void setVertical(boolean vertical) {
+        this.vertical = vertical;
+    }
+
+    public boolean isCore() {
+        return core;
+    }
+
+    public void setCore(boolean core) {
+        this.core = core;
+    }
+
+    public boolean isClipping() {
+        return clipping;
+    }
+
+    public void setClipping(boolean clipping) {
+        this.clipping = clipping;
+    }
+
+    public boolean isSmartRelatives() {
+        return smartRelatives;
+    }
+
+    public void setSmartRelatives(boolean smartRelatives) {
+        this.smartRelatives = smartRelatives;
+    }
+
+    public boolean isRelativeSizes() {
+        return relativeSizes;
+    }
+
+    public void setRelativeSizes(boolean relativeSizes) {
+        this.relativeSizes = relativeSizes;
+    }
+
+    public boolean isLayoutBoundaries() {
+        return layoutBoundaries;
+    }
+
+    /**
+     * Set whether the WeeLayouts are marked as layout boundaries. Has no
+     * effect without relative sizes, since the layouts then have undefined
+     * sizes.
+     */
+    public void setLayoutBoundaries(boolean layoutBoundaries) {
+        this.layoutBoundaries = layoutBoundaries;
+    }
+
+    /**
+     * @return the configuration as URL parameters
+     */
+    @Override
+    public String toString() {
+        return "depth=" + depth + "&breadth=" + breadth + "&vertical="
+                + vertical + "&core=" + core + "&clip=" + clipping
+                + "&smart=" + smartRelatives + "&relative=" + relativeSizes
+                + "&boundary=" + layoutBoundaries;
+    }
+}
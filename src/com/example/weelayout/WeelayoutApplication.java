@@ -1,17 +1,23 @@
 package com.example.weelayout;
 
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.vaadin.weelayout.WeeLayout;
 import org.vaadin.weelayout.WeeLayout.Direction;
 
 import com.vaadin.Application;
-import com.vaadin.terminal.ThemeResource;
-import com.vaadin.ui.AbstractOrderedLayout;
+import com.vaadin.terminal.DownloadStream;
+import com.vaadin.terminal.ParameterHandler;
+import com.vaadin.terminal.URIHandler;
 import com.vaadin.ui.Alignment;
 import com.vaadin.ui.Button;
 import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
-import com.vaadin.ui.Layout;
 import com.vaadin.ui.NativeButton;
 import com.vaadin.ui.TextField;
 import com.vaadin.ui.VerticalLayout;
@@ -19,77 +25,187 @@ import com.vaadin.ui.Window;
 
 @SuppressWarnings("serial")
 public class WeelayoutApplication extends Application {
+
+    /**
+     * The application property enabling the client side measurements of
+     * StressBenchmark, e.g. as an init parameter of the servlet. Disabled by
+     * default, since the measurements let any client store results on the
+     * server.
+     */
+    public static final String MEASUREMENT_PROPERTY = "stressMeasurement";
+
+    /**
+     * Installs a hook that records when the latest server response arrived,
+     * and then clicks the render button.
+     */
+    private static final String START_SCRIPT = "if (!window.stressHooked) {"
+            + " window.stressHooked = true;"
+            + " var open = XMLHttpRequest.prototype.open;"
+            + " XMLHttpRequest.prototype.open = function() {"
+            + "  this.addEventListener('readystatechange', function() {"
+            + "   if (this.readyState == 4) {"
+            + "    window.stressResponseAt = new Date().getTime();"
+            + "   }"
+            + "  });"
+            + "  return open.apply(this, arguments);"
+            + " };"
+            + "}"
+            + "if (window.weeLayoutStats) { window.weeLayoutStats.reset(); }"
+            + "setTimeout(function() {"
+            + " document.getElementById('stress-render').click();"
+            + "}, 0);";
+
+    /**
+     * Reports the time from the arrival of the response until the browser is
+     * idle, and the forced reflows counted by VWeeLayout when the widgetset
+     * is compiled with its statistics, -1 otherwise. RUN is replaced with the
+     * run id.
+     */
+    private static final String REPORT_SCRIPT = "setTimeout(function() {"
+            + " var render = new Date().getTime() - window.stressResponseAt;"
+            + " var reflows = -1;"
+            + " if (window.weeLayoutStats) {"
+            + "  reflows = 0;"
+            + "  var stats = window.weeLayoutStats.get();"
+            + "  for (var i = 0; i < stats.length; i++) {"
+            + "   reflows += stats[i].forcedReflows;"
+            + "  }"
+            + " }"
+            + " new Image().src = 'stress-report/RUN/' + render + '/' + reflows;"
+            + "}, 0);";
+
+    /** The maximum number of client side measurements kept */
+    private static final int MAX_CLIENT_RESULTS = 100;
+
+    /** How long a client side measurement is kept if not fetched */
+    private static final long CLIENT_RESULT_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * A client side measurement and the time it was reported.
+     */
+    private static class ClientResult {
+        final String result;
+        final long reported = System.currentTimeMillis();
+
+        ClientResult(String result) {
+            this.result = result;
+        }
+    }
+
+    /**
+     * Client side measurements reported by the browsers, by run id, oldest
+     * first. Shared by all sessions, since the benchmark polls them from its
+     * own session. Bounded and expired, since the results are not fetched if
+     * the benchmark is stopped.
+     */
+    private static final Map<String, ClientResult> clientResults = new LinkedHashMap<String, ClientResult>() {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, ClientResult> eldest) {
+            return size() > MAX_CLIENT_RESULTS;
+        }
+    };
+
     @Override
     public void init() {
-        Window mainWindow = new Window("Weelayout Application");
+        final Window mainWindow = new Window("Weelayout Application");
         setMainWindow(mainWindow);
-        mainWindow.setContent(splitRecursive(1));
+        mainWindow.setContent(configuration.createLayout());
+        final boolean measurement = Boolean
+                .parseBoolean(getProperty(MEASUREMENT_PROPERTY));
+        // E.g. ?depth=4&breadth=2&core=true to compare with core layouts, add
+        // &run=<id> to measure the client side when enabled
+        mainWindow.addParameterHandler(new ParameterHandler() {
+            public void handleParameters(Map<String, String[]> parameters) {
+                String[] run = measurement ? parameters.get("run") : null;
+                boolean changed = configuration.readParameters(parameters);
+                if (run != null && run.length > 0
+                        && run[0].matches("[\\w-]{1,64}")) {
+                    measure(mainWindow, run[0]);
+                } else if (changed) {
+                    mainWindow.setContent(configuration.createLayout());
+                }
+            }
+        });
+        if (measurement) {
+            mainWindow.addURIHandler(new URIHandler() {
+                public DownloadStream handleURI(URL context,
+                        String relativeUri) {
+                    return handleMeasurementURI(relativeUri);
+                }
+            });
+        }
         setTheme("test");
     }
 
-    boolean core = false;
-    boolean vertical = false;
+    final StressConfiguration configuration = new StressConfiguration();
 
-    Layout splitRecursive(int deep) {
-        Layout l = null;
-        if (core) {
-            l = vertical ? new VerticalLayout() : new HorizontalLayout();
-        } else {
-            l = new WeeLayout(vertical ? Direction.VERTICAL
-                    : Direction.HORIZONTAL);
-        }
-        l.setSizeFull();
-        if (core) {
-            AbstractOrderedLayout c = (AbstractOrderedLayout) l;
-            NativeButton b = new NativeButton("One");
-            b.setSizeFull();
-            c.addComponent(b);
-            c.setExpandRatio(b, 1);
-            if (deep > 0) {
-                Layout c2 = splitRecursive(--deep);
-                c.addComponent(c2);
-                c.setExpandRatio(c2, 9);
-            }
-        } else {
-            WeeLayout wl = (WeeLayout) l;
-            wl.setClipping(true);
-            NativeButton b = new NativeButton("Button");
-            b.setSizeFull();
-            if (vertical) {
-                b.setHeight("10%");
-                b.setWidth("50%");
-            } else {
-                b.setWidth("10%");
-                b.setHeight("50%");
-            }
-            wl.addComponent(b, Alignment.MIDDLE_CENTER);
-            
-            
-            Label label = new Label("Label");
-            label.setCaption("Label caption");
-            label.setSizeFull();
-            label.setIcon(new ThemeResource("../runo/icons/16/document.png"));
-            label.addStyleName("foobar");
-            if (vertical) {
-            	label.setHeight("10%");
-            } else {
-            	label.setWidth("10%");
-            }
-            l.addComponent(label);
-            
-            if (deep > 0) {
-                Layout w = splitRecursive(--deep);
-                if (vertical) {
-                    w.setHeight("80%");
-                } else {
-                    w.setWidth("80%");
+    /**
+     * Renders the configured layout in a separate request, so that only the
+     * client side handling of its response is measured. Only used when
+     * {@link #MEASUREMENT_PROPERTY} is enabled. The browser reports
+     * the result to <code>stress-report/&lt;run&gt;/&lt;render
+     * ms&gt;/&lt;reflows&gt;</code>, and the benchmark fetches it from
+     * <code>stress-result/&lt;run&gt;</code>.
+     */
+    private void measure(final Window window, final String run) {
+        VerticalLayout start = new VerticalLayout();
+        NativeButton render = new NativeButton("Render",
+                new Button.ClickListener() {
+                    public void buttonClick(ClickEvent event) {
+                        window.setContent(configuration.createLayout());
+                        window.executeJavaScript(REPORT_SCRIPT.replace("RUN",
+                                run));
+                    }
+                });
+        render.setDebugId("stress-render");
+        start.addComponent(render);
+        window.setContent(start);
+        window.executeJavaScript(START_SCRIPT);
+    }
+
+    private static DownloadStream handleMeasurementURI(String relativeUri) {
+        if (relativeUri.startsWith("stress-report/")) {
+            String[] parts = relativeUri.substring("stress-report/".length())
+                    .split("/");
+            if (parts.length == 3 && parts[0].matches("[\\w-]{1,64}")
+                    && parts[1].matches("\\d{1,9}")
+                    && parts[2].matches("-?\\d{1,9}")) {
+                synchronized (clientResults) {
+                    expireClientResults();
+                    clientResults.put(parts[0], new ClientResult(parts[1]
+                            + " " + parts[2]));
                 }
-                l.addComponent(w);
-            } else {
-                b.setSizeFull();
             }
+            return text("");
+        } else if (relativeUri.startsWith("stress-result/")) {
+            ClientResult result;
+            synchronized (clientResults) {
+                expireClientResults();
+                result = clientResults.remove(relativeUri
+                        .substring("stress-result/".length()));
+            }
+            return text(result == null ? "" : result.result);
         }
-        return l;
+        return null;
+    }
+
+    /**
+     * Removes the measurements that were not fetched in time.
+     */
+    private static void expireClientResults() {
+        long expired = System.currentTimeMillis() - CLIENT_RESULT_MILLIS;
+        Iterator<ClientResult> i = clientResults.values().iterator();
+        while (i.hasNext() && i.next().reported < expired) {
+            i.remove();
+        }
+    }
+
+    private static DownloadStream text(String text) {
+        DownloadStream stream = new DownloadStream(new ByteArrayInputStream(
+                text.getBytes()), "text/plain", "result.txt");
+        stream.setCacheTime(0);
+        return stream;
     }
 
     WeeLayout undefinedWithRelativeSizes() {
@@ -0,0 +1,159 @@
+package com.example.weelayout.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.UUID;
+
+import com.example.weelayout.StressConfiguration;
+
+/**
+ * Measures the client side of a {@link StressConfiguration} by loading it in
+ * a headless browser from a running WeelayoutApplication. The application
+ * renders the configuration when it is opened with a <code>run</code>
+ * parameter, and the browser reports the time from the arrival of the
+ * response until it is idle, and the forced reflows counted by VWeeLayout
+ * when the widgetset is compiled with <code>weelayout.stats</code> set to
+ * <code>on</code>. The results are polled from the application.
+ */
+class BrowserMeasurement {
+
+    private static final int ROUNDS = 3;
+
+    private static final long TIMEOUT_MILLIS = 60 * 1000L;
+
+    private static final long POLL_MILLIS = 200;
+
+    static class Result {
+        /** Median client side render time in milliseconds */
+        long renderMillis;
+
+        /** Forced reflows in VWeeLayouts, -1 if not counted */
+        int forcedReflows;
+    }
+
+    private final String applicationUrl;
+
+    private final String browser;
+
+    /** The session cookie, so that all polls use one session */
+    private String cookie;
+
+    /**
+     * @param applicationUrl
+     *            the URL of the running application
+     * @param browser
+     *            the browser executable, e.g. <code>google-chrome</code> or
+     *            <code>chromium</code>
+     */
+    BrowserMeasurement(String applicationUrl, String browser) {
+        this.applicationUrl = applicationUrl.endsWith("/") ? applicationUrl
+                : applicationUrl + "/";
+        this.browser = browser;
+    }
+
+    Result measure(StressConfiguration configuration) throws Exception {
+        long[] times = new long[ROUNDS];
+        Result result = new Result();
+        for (int i = 0; i < ROUNDS; i++) {
+            String[] measured = run(configuration).split(" ");
+            times[i] = Long.parseLong(measured[0]);
+            result.forcedReflows = Integer.parseInt(measured[1]);
+        }
+        Arrays.sort(times);
+        result.renderMillis = times[ROUNDS / 2];
+        return result;
+    }
+
+    /**
+     * Loads the configuration once in a new browser process.
+     *
+     * @return the render time and forced reflows separated by a space
+     */
+    private String run(StressConfiguration configuration) throws Exception {
+        String run = UUID.randomUUID().toString();
+        File profile = File.createTempFile("weelayout-browser", "");
+        profile.delete();
+        profile.mkdir();
+        Process process = new ProcessBuilder(browser, "--headless",
+                "--disable-gpu", "--no-first-run",
+                "--remote-debugging-port=0", "--user-data-dir=" + profile,
+                applicationUrl + "?" + configuration + "&run=" + run)
+                .redirectErrorStream(true).start();
+        drain(process.getInputStream());
+        try {
+            long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < end) {
+                String result = get("stress-result/" + run);
+                if (result.length() > 0) {
+                    return result;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+            throw new IOException("No result from the browser for "
+                    + configuration + " in " + TIMEOUT_MILLIS + " ms");
+        } finally {
+            process.destroy();
+            process.waitFor();
+            delete(profile);
+        }
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                applicationUrl + path).openConnection();
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            String setCookie = connection.getHeaderField("Set-Cookie");
+            if (setCookie != null) {
+                cookie = setCookie.split(";")[0];
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            for (int n; (n = in.read(buffer)) != -1;) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("UTF-8").trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Discards the output of the browser, so that it never blocks on a full
+     * pipe.
+     */
+    private static void drain(final InputStream in) {
+        Thread thread = new Thread("browser output") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    while (in.read(buffer) != -1) {
+                    }
+                } catch (IOException e) {
+                    // The browser was closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.weelayout.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Paintable;
+import com.vaadin.terminal.Resource;
+import com.vaadin.terminal.ThemeResource;
+import com.vaadin.ui.Alignment;
+
+/**
+ * A local {@link PaintTarget} that records the painted UIDL as JSON, roughly
+ * in the format the terminal sends to the client, without needing an
+ * application, a session or a communication manager. Every paintable is
+ * painted completely, as on a full repaint, unless the target is created as
+ * an incremental one.
+ * <p>
+ * Implemented as a dynamic proxy so that it works with all Vaadin 6 versions
+ * regardless of which methods their PaintTarget has.
+ */
+public class RecordingPaintTarget implements InvocationHandler {
+
+    private static class Tag {
+        final String name;
+        final StringBuilder attributes = new StringBuilder();
+        final StringBuilder children = new StringBuilder();
+
+        Tag(String name) {
+            this.name = name;
+        }
+    }
+
+    private final boolean fullRepaint;
+
+    private final PaintTarget target;
+
+    private final Map<Object, String> ids = new IdentityHashMap<Object, String>();
+
+    private final ArrayList<Tag> open = new ArrayList<Tag>();
+
+    private final StringBuilder uidl = new StringBuilder();
+
+    private int paintedCount = 0;
+
+    /**
+     * @param fullRepaint
+     *            the value returned by {@link PaintTarget#isFullRepaint()}
+     */
+    public RecordingPaintTarget(boolean fullRepaint) {
+        this.fullRepaint = fullRepaint;
+        target = (PaintTarget) Proxy.newProxyInstance(
+                PaintTarget.class.getClassLoader(),
+                new Class<?>[] { PaintTarget.class }, this);
+    }
+
+    /**
+     * @return the paint target to paint into
+     */
+    public PaintTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the UIDL painted since the previous {@link #reset()}
+     */
+    public String getUidl() {
+        return uidl.toString();
+    }
+
+    /**
+     * @return the length of the painted UIDL in characters
+     */
+    public int getUidlLength() {
+        return uidl.length();
+    }
+
+    /**
+     * @return the number of paintables painted since the previous
+     *         {@link #reset()}
+     */
+    public int getPaintedCount() {
+        return paintedCount;
+    }
+
+    /**
+     * Discards the painted UIDL. The paintable ids are kept, like in a real
+     * terminal.
+     */
+    public void reset() {
+        uidl.setLength(0);
+        open.clear();
+        paintedCount = 0;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        final String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return "RecordingPaintTarget";
+        }
+
+        if ("isFullRepaint".equals(name)) {
+            return fullRepaint;
+        } else if ("getTag".equals(name)) {
+            return args[0].getClass().getSimpleName().toLowerCase();
+        } else if ("startTag".equals(name)) {
+            if (args.length == 2) {
+                open.add(new Tag((String) args[1]));
+                attribute("id", idOf(args[0]));
+                paintedCount++;
+                // Not cached, paint the contents
+                return Boolean.FALSE;
+            }
+            open.add(new Tag((String) args[0]));
+        } else if ("endTag".equals(name)) {
+            close();
+        } else if ("paintReference".equals(name)) {
+            attribute((String) args[1], idOf(args[0]));
+        } else if ("addAttribute".equals(name)) {
+            attribute((String) args[0], args[1]);
+        } else if ("addVariable".equals(name)) {
+            attribute("v:" + args[1], args[2]);
+        } else if (args != null) {
+            // Text, sections and raw UIDL
+            for (Object arg : args) {
+                if (arg instanceof String) {
+                    child(quote((String) arg));
+                }
+            }
+        }
+
+        if (method.getReturnType() == boolean.class) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    private void attribute(String name, Object value) {
+        if (open.isEmpty()) {
+            return;
+        }
+        StringBuilder attributes = open.get(open.size() - 1).attributes;
+        if (attributes.length() > 0) {
+            attributes.append(',');
+        }
+        attributes.append(quote(name)).append(':').append(toJson(value));
+    }
+
+    private void child(String json) {
+        if (open.isEmpty()) {
+            if (uidl.length() > 0) {
+                uidl.append(',');
+            }
+            uidl.append(json);
+        } else {
+            open.get(open.size() - 1).children.append(',').append(json);
+        }
+    }
+
+    private void close() {
+        Tag tag = open.remove(open.size() - 1);
+        child("[" + quote(tag.name) + ",{" + tag.attributes + "}"
+                + tag.children + "]");
+    }
+
+    private String idOf(Object paintable) {
+        String id = ids.get(paintable);
+        if (id == null) {
+            id = "PID" + ids.size();
+            ids.put(paintable, id);
+        }
+        return id;
+    }
+
+    private String toJson(Object value) {
+        if (value == null) {
+            return "null";
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        } else if (value instanceof Alignment) {
+            return String.valueOf(((Alignment) value).getBitMask());
+        } else if (value instanceof Paintable) {
+            return quote(idOf(value));
+        } else if (value instanceof ThemeResource) {
+            return quote("theme://" + ((ThemeResource) value).getResourceId());
+        } else if (value instanceof Resource) {
+            return quote("app://" + value);
+        } else if (value instanceof Map<?, ?>) {
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                Object key = entry.getKey();
+                json.append(key instanceof Paintable ? quote(idOf(key))
+                        : quote(String.valueOf(key)));
+                json.append(':').append(toJson(entry.getValue()));
+            }
+            return json.append('}').toString();
+        } else if (value instanceof Object[]) {
+            // Like JsonPaintTarget, array items are sent as strings
+            StringBuilder json = new StringBuilder("[");
+            for (Object item : (Object[]) value) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append(quote(String.valueOf(item)));
+            }
+            return json.append(']').toString();
+        }
+        return quote(String.valueOf(value));
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.weelayout.benchmark;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.example.weelayout.StressConfiguration;
+import com.vaadin.ui.Layout;
+
+/**
+ * Paints the recursively split layouts of {@link StressConfiguration} with
+ * WeeLayout and with the core ordered layouts, and writes a comparison report
+ * of the UIDL size and the server side paint time:
+ *
+ * <pre>
+ * java -cp build/classes:WebContent/WEB-INF/lib/* \
+ *     com.example.weelayout.benchmark.StressBenchmark [report-file \
+ *     [application-url [browser]]]
+ * </pre>
+ *
+ * When the URL of a running WeelayoutApplication is given, each
+ * configuration is also loaded in a headless browser, by default
+ * <code>google-chrome</code>, and the report includes the client side render
+ * time and forced reflow counts, see {@link BrowserMeasurement}. The forced
+ * reflows are only counted when the widgetset is compiled with
+ * <code>weelayout.stats</code> set to <code>on</code>, and never for the
+ * core layouts. The application only accepts the measurements when its
+ * <code>stressMeasurement</code> init parameter is <code>true</code>, see
+ * {@link com.example.weelayout.WeelayoutApplication#MEASUREMENT_PROPERTY}.
+ */
+public class StressBenchmark {
+
+    private static final int[] DEPTHS = { 1, 3, 5 };
+
+    private static final int[] BREADTHS = { 1, 2 };
+
+    private static final int WARMUP_ROUNDS = 20;
+
+    private static final int MEASURED_ROUNDS = 50;
+
+    private static class Result {
+        final StressConfiguration configuration;
+        int components;
+        int uidl;
+        double paintMicros;
+        long renderMillis = -1;
+        int forcedReflows = -1;
+
+        Result(StressConfiguration configuration) {
+            this.configuration = configuration;
+        }
+    }
+
+    private static Result run(StressConfiguration configuration)
+            throws Exception {
+        Result result = new Result(configuration);
+        RecordingPaintTarget recorder = new RecordingPaintTarget(true);
+        long[] times = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < WARMUP_ROUNDS + MEASURED_ROUNDS; i++) {
+            // A new tree each round, like a new application instance
+            Layout layout = configuration.createLayout();
+            recorder.reset();
+            long start = System.nanoTime();
+            layout.paint(recorder.getTarget());
+            long time = System.nanoTime() - start;
+            if (i >= WARMUP_ROUNDS) {
+                times[i - WARMUP_ROUNDS] = time;
+            }
+            result.components = recorder.getPaintedCount();
+            result.uidl = recorder.getUidl().getBytes("UTF-8").length;
+        }
+        // The median is less sensitive to GC pauses than the mean
+        Arrays.sort(times);
+        result.paintMicros = times[times.length / 2] / 1000.0;
+        return result;
+    }
+
+    private static List<StressConfiguration> createConfigurations() {
+        List<StressConfiguration> configurations = new ArrayList<StressConfiguration>();
+        boolean[] booleans = { false, true };
+        for (int depth : DEPTHS) {
+            for (int breadth : BREADTHS) {
+                for (boolean vertical : booleans) {
+                    for (boolean relative : booleans) {
+                        // Clipping and smart relatives only apply to WeeLayout
+                        configurations.add(new StressConfiguration(depth,
+                                breadth, vertical, true, false, false,
+                                relative));
+                        for (boolean clip : booleans) {
+                            for (boolean smart : booleans) {
+                                configurations.add(new StressConfiguration(
+                                        depth, breadth, vertical, false, clip,
+                                        smart, relative));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return configurations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintWriter out = args.length > 0 ? new PrintWriter(new FileWriter(
+                args[0])) : new PrintWriter(System.out);
+        BrowserMeasurement browser = args.length > 1 ? new BrowserMeasurement(
+                args[1], args.length > 2 ? args[2] : "google-chrome") : null;
+        try {
+            List<Result> results = new ArrayList<Result>();
+            for (StressConfiguration configuration : createConfigurations()) {
+                Result result = run(configuration);
+                if (browser != null) {
+                    BrowserMeasurement.Result client = browser
+                            .measure(configuration);
+                    result.renderMillis = client.renderMillis;
+                    result.forcedReflows = client.forcedReflows;
+                }
+                results.add(result);
+            }
+            writeReport(results, out);
+        } finally {
+            out.flush();
+            if (args.length > 0) {
+                out.close();
+            }
+        }
+    }
+
+    private static void writeReport(List<Result> results, PrintWriter out) {
+        out.println("# Paint results");
+        out.println(String.format("%-90s %10s %10s %12s %10s %8s",
+                "Configuration", "Painted", "UIDL B", "Paint us",
+                "Render ms", "Reflows"));
+        for (Result r : results) {
+            out.println(String.format("%-90s %10d %10d %12.1f %10s %8s",
+                    r.configuration, r.components, r.uidl, r.paintMicros,
+                    r.renderMillis < 0 ? "-" : String.valueOf(r.renderMillis),
+                    r.forcedReflows < 0 ? "-" : String
+                            .valueOf(r.forcedReflows)));
+        }
+
+        // Compare each WeeLayout variant with the core layouts of the same
+        // shape
+        Map<String, Result> core = new LinkedHashMap<String, Result>();
+        for (Result r : results) {
+            if (r.configuration.isCore()) {
+                core.put(shape(r.configuration), r);
+            }
+        }
+        out.println();
+        out.println("# WeeLayout relative to core layouts (< 1 is better)");
+        out.println(String.format("%-90s %10s %12s %12s", "Configuration",
+                "UIDL", "Paint time", "Render time"));
+        for (Result r : results) {
+            Result c = core.get(shape(r.configuration));
+            if (r.configuration.isCore() || c == null) {
+                continue;
+            }
+            out.println(String.format("%-90s %10.2f %12.2f %12s",
+                    r.configuration, (double) r.uidl / c.uidl, r.paintMicros
+                            / c.paintMicros, r.renderMillis < 0
+                            || c.renderMillis <= 0 ? "-" : String.format(
+                            "%.2f", (double) r.renderMillis / c.renderMillis)));
+        }
+    }
+
+    private static String shape(StressConfiguration c) {
+        return c.getDepth() + "/" + c.getBreadth() + "/" + c.isVertical()
+                + "/" + c.isRelativeSizes();
+    }
+}
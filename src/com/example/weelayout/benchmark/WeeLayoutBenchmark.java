@@ -0,0 +1,616 @@
+package com.example.weelayout.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vaadin.weelayout.ComponentList;
+import org.vaadin.weelayout.WeeLayout;
+import org.vaadin.weelayout.WeeLayout.Direction;
+import org.vaadin.weelayout.WeeLayoutPaintCache;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+
+/**
+ * Micro benchmarks for the server side operations of {@link WeeLayout}. Runs
+ * offline, without a servlet container or a browser:
+ *
+ * <pre>
+ * java -cp build/classes:WebContent/WEB-INF/lib/* \
+ *     com.example.weelayout.benchmark.WeeLayoutBenchmark [size...]
+ * </pre>
+ *
+ * Each operation is warmed up and then measured with layouts of 10, 100, 1000
+ * and 10000 children, or the sizes given as arguments. Painting is done into a
+ * {@link RecordingPaintTarget}. The report contains the throughput, the
+ * allocated bytes per operation and the size of the painted UIDL, followed by
+ * the size of the packed layout attribute compared to the alignment map it
+ * replaced, and by the serialized size and (de)serialization time of a large
+ * layout tree.
+ * <p>
+ * This is an ad-hoc harness timed with {@link System#nanoTime()}, not a JMH
+ * benchmark: all operations run in one JVM without forking, and nothing
+ * guards against dead code elimination beyond using the results. The
+ * allocated bytes are read from the allocation counter of the current
+ * thread, when the JVM has one, and include everything the thread allocates
+ * during the measurement. The figures are good for comparing the operations
+ * and revisions with each other on one machine, not as absolute numbers.
+ */
+public class WeeLayoutBenchmark {
+
+    private static final int[] DEFAULT_SIZES = { 10, 100, 1000, 10000 };
+
+    private static final long WARMUP_NANOS = 500 * 1000 * 1000L;
+
+    private static final long MEASURE_NANOS = 1000 * 1000 * 1000L;
+
+    /** Maximum number of operations in one measured run */
+    private static final int BATCH = 100;
+
+    private static final Alignment[] ALIGNMENTS = { Alignment.TOP_LEFT,
+            Alignment.MIDDLE_CENTER, Alignment.BOTTOM_RIGHT };
+
+    /**
+     * Keeps the results of the lookups alive so the JIT can not remove them.
+     */
+    static int sink;
+
+    /**
+     * A benchmarked operation. {@link #setUp(int)} and {@link #prepare()} are
+     * not measured.
+     */
+    protected static abstract class Operation {
+
+        final String name;
+
+        WeeLayout layout;
+
+        List<Component> children;
+
+        int[] positions;
+
+        int batch;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Creates a layout with the given number of children.
+         */
+        void setUp(int size) {
+            layout = new WeeLayout(Direction.VERTICAL);
+            children = createLabels(size);
+            layout.addComponents(children);
+            batch = Math.min(BATCH, size);
+            positions = new int[batch];
+            Random random = new Random(size);
+            for (int i = 0; i < batch; i++) {
+                positions[i] = random.nextInt(size);
+            }
+        }
+
+        /**
+         * Restores the state before each measured run.
+         */
+        void prepare() {
+        }
+
+        /**
+         * @return the number of operations performed
+         */
+        abstract int run() throws Exception;
+
+        /**
+         * @return the size of the UIDL painted by the latest run, or -1 if
+         *         the operation does not paint
+         */
+        int getUidlLength() {
+            return -1;
+        }
+    }
+
+    private static List<Component> createLabels(int count) {
+        List<Component> labels = new ArrayList<Component>(count);
+        for (int i = 0; i < count; i++) {
+            labels.add(new Label("Label " + i));
+        }
+        return labels;
+    }
+
+    private static List<Operation> createOperations() {
+        List<Operation> operations = new ArrayList<Operation>();
+
+        operations.add(new Operation("addComponent") {
+            List<Component> added;
+
+            @Override
+            void prepare() {
+                if (added != null) {
+                    for (Component c : added) {
+                        layout.removeComponent(c);
+                    }
+                }
+                added = createLabels(batch);
+            }
+
+            @Override
+            int run() {
+                for (Component c : added) {
+                    layout.addComponent(c);
+                }
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("addComponent(index)") {
+            List<Component> added;
+
+            @Override
+            void prepare() {
+                if (added != null) {
+                    for (Component c : added) {
+                        layout.removeComponent(c);
+                    }
+                }
+                added = createLabels(batch);
+            }
+
+            @Override
+            int run() {
+                int middle = layout.size() / 2;
+                for (Component c : added) {
+                    layout.addComponent(c, middle);
+                }
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("removeComponent") {
+            List<Component> removed = new ArrayList<Component>();
+            int middle;
+
+            @Override
+            void prepare() {
+                for (Component c : removed) {
+                    layout.addComponent(c, middle);
+                }
+                removed.clear();
+                middle = (layout.size() - batch) / 2;
+                for (int i = 0; i < batch; i++) {
+                    removed.add(layout.getComponent(middle + i));
+                }
+            }
+
+            @Override
+            int run() {
+                for (Component c : removed) {
+                    layout.removeComponent(c);
+                }
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("replaceComponent") {
+            @Override
+            int run() {
+                for (int i = 0; i < batch; i++) {
+                    layout.replaceComponent(children.get(positions[i]),
+                            children.get(positions[batch - 1 - i]));
+                }
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("setComponentAlignment") {
+            int round = 0;
+
+            @Override
+            int run() {
+                Alignment alignment = ALIGNMENTS[round++ % ALIGNMENTS.length];
+                for (int i = 0; i < batch; i++) {
+                    layout.setComponentAlignment(children.get(positions[i]),
+                            alignment);
+                }
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("getComponentIndex") {
+            @Override
+            int run() {
+                int sum = 0;
+                for (int i = 0; i < batch; i++) {
+                    sum += layout.getComponentIndex(children.get(positions[i]));
+                }
+                sink += sum;
+                return batch;
+            }
+        });
+
+        operations.add(new Operation("paintContent") {
+            final RecordingPaintTarget recorder = new RecordingPaintTarget(
+                    true);
+
+            @Override
+            void setUp(int size) {
+                super.setUp(size);
+                // Every other child aligned, like in a typical form
+                for (int i = 0; i < size; i += 2) {
+                    layout.setComponentAlignment(children.get(i),
+                            Alignment.MIDDLE_RIGHT);
+                }
+            }
+
+            @Override
+            void prepare() {
+                recorder.reset();
+            }
+
+            @Override
+            int run() throws Exception {
+                layout.paint(recorder.getTarget());
+                return 1;
+            }
+
+            @Override
+            int getUidlLength() {
+                return recorder.getUidlLength();
+            }
+        });
+
+        operations.add(new Operation("paintContent(immutable)") {
+            final RecordingPaintTarget recorder = new RecordingPaintTarget(
+                    true);
+
+            @Override
+            void setUp(int size) {
+                super.setUp(size);
+                for (int i = 0; i < size; i += 2) {
+                    layout.setComponentAlignment(children.get(i),
+                            Alignment.MIDDLE_RIGHT);
+                }
+                layout.setImmutable(true);
+            }
+
+            @Override
+            void prepare() {
+                recorder.reset();
+            }
+
+            @Override
+            int run() throws Exception {
+                // Replayed from the recorded paint after the first run
+                layout.paint(recorder.getTarget());
+                return 1;
+            }
+
+            @Override
+            int getUidlLength() {
+                return recorder.getUidlLength();
+            }
+        });
+
+        operations.add(new Operation("paintContent(delta)") {
+            final RecordingPaintTarget full = new RecordingPaintTarget(true);
+            final RecordingPaintTarget delta = new RecordingPaintTarget(false);
+            Component inserted;
+
+            @Override
+            void prepare() {
+                try {
+                    // Bring the client in sync before the change. After the
+                    // first run only the removal is painted, so that the
+                    // garbage of a complete paint does not trigger
+                    // collections during the measured paints.
+                    if (inserted == null) {
+                        full.reset();
+                        layout.paint(full.getTarget());
+                    } else {
+                        layout.removeComponent(inserted);
+                        delta.reset();
+                        layout.paint(delta.getTarget());
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                inserted = new Label("Inserted");
+                layout.addComponent(inserted, layout.size() / 2);
+                delta.reset();
+            }
+
+            @Override
+            int run() throws Exception {
+                layout.paint(delta.getTarget());
+                return 1;
+            }
+
+            @Override
+            int getUidlLength() {
+                return delta.getUidlLength();
+            }
+        });
+
+        return operations;
+    }
+
+    /**
+     * Reads the bytes allocated by the current thread, when the JVM supports
+     * it.
+     */
+    private static class AllocationCounter {
+
+        private final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        private Method allocatedBytes;
+
+        AllocationCounter() {
+            try {
+                allocatedBytes = Class.forName(
+                        "com.sun.management.ThreadMXBean").getMethod(
+                        "getThreadAllocatedBytes", long.class);
+                if (!allocatedBytes.getDeclaringClass().isInstance(bean)) {
+                    allocatedBytes = null;
+                }
+            } catch (Exception e) {
+                allocatedBytes = null;
+            }
+        }
+
+        boolean isSupported() {
+            return allocatedBytes != null;
+        }
+
+        long get() {
+            if (allocatedBytes == null) {
+                return 0;
+            }
+            try {
+                return (Long) allocatedBytes.invoke(bean, Thread
+                        .currentThread().getId());
+            } catch (Exception e) {
+                allocatedBytes = null;
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Compares the size of the packed <code>layout</code> attribute with the
+     * alignment map painted before it, for a layout with every other child
+     * aligned and every third child relative sized. The map did not carry the
+     * relative sizes, the client parsed them from the child UIDL.
+     */
+    private static void reportLayoutInfoSize(int size) throws PaintException {
+        WeeLayout layout = new WeeLayout(Direction.VERTICAL);
+        List<Component> children = createLabels(size);
+        layout.addComponents(children);
+        Map<Component, Alignment> alignments = new IdentityHashMap<Component, Alignment>();
+        for (int i = 0; i < size; i++) {
+            Component c = children.get(i);
+            if (i % 2 == 0) {
+                layout.setComponentAlignment(c, Alignment.MIDDLE_RIGHT);
+                alignments.put(c, Alignment.MIDDLE_RIGHT);
+            }
+            if (i % 3 == 0) {
+                c.setWidth("100%");
+            }
+        }
+
+        RecordingPaintTarget packed = new RecordingPaintTarget(true);
+        layout.paint(packed.getTarget());
+        int packedLength = attributeLength(packed, "layout");
+
+        RecordingPaintTarget map = new RecordingPaintTarget(true);
+        PaintTarget target = map.getTarget();
+        target.startTag("weelayout");
+        target.addAttribute("alignments", alignments);
+        target.endTag("weelayout");
+        int mapLength = attributeLength(map, "alignments");
+
+        System.out.println();
+        System.out.println(String.format(
+                "Layout info with %d children: alignment map %d B, "
+                        + "packed %d B (%.0f%% smaller), whole UIDL %d B",
+                size, mapLength, packedLength,
+                100.0 * (mapLength - packedLength) / mapLength,
+                packed.getUidlLength()));
+    }
+
+    /**
+     * Serializes and deserializes a tree of nested layouts, every other child
+     * aligned. The child storage is also compared alone: the serialized form
+     * of {@link ComponentList} against the LinkedList and alignment HashMap
+     * WeeLayout serialized before.
+     */
+    private static void reportSerialization(int layouts, int childrenPerLayout)
+            throws Exception {
+        WeeLayout root = new WeeLayout(Direction.VERTICAL);
+        List<ComponentList> lists = new ArrayList<ComponentList>();
+        List<BaselineForm> baselineForms = new ArrayList<BaselineForm>();
+        for (int i = 0; i < layouts; i++) {
+            WeeLayout layout = new WeeLayout(Direction.HORIZONTAL);
+            List<Component> children = createLabels(childrenPerLayout);
+            layout.addComponents(children);
+            ComponentList list = new ComponentList();
+            for (int j = 0; j < childrenPerLayout; j++) {
+                list.add(children.get(j));
+                if (j % 2 == 0) {
+                    Alignment alignment = ALIGNMENTS[j % ALIGNMENTS.length];
+                    layout.setComponentAlignment(children.get(j), alignment);
+                    list.setAlignment(children.get(j), alignment);
+                }
+            }
+            root.addComponent(layout);
+            lists.add(list);
+            baselineForms.add(new BaselineForm(list));
+        }
+
+        byte[] bytes = serialize(root);
+        long serializeNanos = 0;
+        long deserializeNanos = 0;
+        int rounds = 0;
+        // Warm up for one round, measure the rest
+        for (long end = System.nanoTime() + MEASURE_NANOS; System
+                .nanoTime() < end || rounds < 2; rounds++) {
+            long start = System.nanoTime();
+            bytes = serialize(root);
+            long middle = System.nanoTime();
+            WeeLayout copy = (WeeLayout) deserialize(bytes);
+            // Use the copy, so that the lazily rebuilt index is included
+            sink += ((WeeLayout) copy.getComponent(layouts - 1))
+                    .getComponentIndex(((WeeLayout) copy
+                            .getComponent(layouts - 1)).getComponent(0));
+            if (rounds > 0) {
+                serializeNanos += middle - start;
+                deserializeNanos += System.nanoTime() - middle;
+            }
+        }
+        rounds--;
+        int baselineLength = serialize(baselineForms).length;
+        int compactLength = serialize(lists).length;
+
+        System.out.println();
+        System.out.println(String.format(
+                "Serialized %d layouts of %d children: %d B, "
+                        + "serialize %.2f ms, deserialize %.2f ms", layouts,
+                childrenPerLayout, bytes.length, serializeNanos / 1e6
+                        / rounds, deserializeNanos / 1e6 / rounds));
+        System.out.println(String.format(
+                "Children: baseline fields %d B, ComponentList %d B "
+                        + "(%.0f%% smaller)", baselineLength, compactLength,
+                100.0 * (baselineLength - compactLength) / baselineLength));
+    }
+
+    /**
+     * The fields WeeLayout kept its children in before {@link ComponentList},
+     * written with the default serialization. The baseline had no size
+     * hints, so only the order and the alignments are copied.
+     */
+    @SuppressWarnings("serial")
+    private static class BaselineForm implements Serializable {
+
+        final LinkedList<Component> components = new LinkedList<Component>();
+        final Map<Component, Alignment> componentToAlignment = new HashMap<Component, Alignment>();
+
+        BaselineForm(ComponentList list) {
+            for (Component c : list) {
+                components.add(c);
+                Alignment alignment = list.getAlignment(c);
+                if (alignment != null) {
+                    componentToAlignment.put(c, alignment);
+                }
+            }
+        }
+    }
+
+    private static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int attributeLength(RecordingPaintTarget recorder,
+            String name) {
+        Matcher matcher = Pattern.compile(
+                "\"" + name + "\":(\"[^\"]*\"|\\[[^\\]]*\\]|\\{[^}]*\\})")
+                .matcher(recorder.getUidl());
+        return matcher.find() ? matcher.group().length() : 0;
+    }
+
+    private static class Result {
+        long operations;
+        long nanos;
+        long bytes;
+    }
+
+    private static Result measure(Operation operation, long duration,
+            AllocationCounter allocations) throws Exception {
+        Result result = new Result();
+        while (result.nanos < duration) {
+            operation.prepare();
+            long bytes = allocations.get();
+            long start = System.nanoTime();
+            int count = operation.run();
+            result.nanos += System.nanoTime() - start;
+            result.bytes += allocations.get() - bytes;
+            result.operations += count;
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        AllocationCounter allocations = new AllocationCounter();
+        if (!allocations.isSupported()) {
+            System.out.println("Allocation counting is not supported "
+                    + "by this JVM");
+        }
+
+        System.out.println(String.format("%-24s %7s %14s %12s %12s %10s",
+                "Operation", "Size", "ops/s", "ns/op", "B/op", "UIDL"));
+        for (Operation operation : createOperations()) {
+            for (int size : sizes) {
+                operation.setUp(size);
+                measure(operation, WARMUP_NANOS, allocations);
+                Result result = measure(operation, MEASURE_NANOS, allocations);
+
+                double nanosPerOp = (double) result.nanos / result.operations;
+                int uidl = operation.getUidlLength();
+                System.out.println(String.format(
+                        "%-24s %7d %14.0f %12.1f %12s %10s",
+                        operation.name,
+                        size,
+                        1e9 / nanosPerOp,
+                        nanosPerOp,
+                        allocations.isSupported() ? String
+                                .valueOf(result.bytes / result.operations)
+                                : "-", uidl < 0 ? "-" : String
+                                .valueOf(uidl)));
+            }
+        }
+
+        reportLayoutInfoSize(1000);
+        reportSerialization(100, 100);
+
+        System.out.println();
+        System.out.println("Paint cache: " + WeeLayoutPaintCache.getReport());
+    }
+}
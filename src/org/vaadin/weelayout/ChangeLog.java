@@ -0,0 +1,149 @@
+package org.vaadin.weelayout;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+
+/**
+ * Log of the structural changes made to a {@link ComponentList} since the
+ * client last received the layout. Used by {@link WeeLayout} to paint only the
+ * changes instead of all children.
+ * <p>
+ * The log gives up (overflows) when it grows longer than
+ * {@link #MAX_OPERATIONS} or when the list is modified in a way that is
+ * cheaper to send as a full repaint, e.g. cleared.
+ */
+@SuppressWarnings("serial")
+class ChangeLog implements Serializable {
+
+    static final int MAX_OPERATIONS = 256;
+
+    enum Type {
+        INSERT("insert"), REMOVE("remove"), MOVE("move"), ALIGN("align");
+
+        /**
+         * The UIDL tag name of the operation.
+         */
+        final String tag;
+
+        Type(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * A single structural change. Indexes refer to the state of the list at
+     * the moment the operation was made, so the operations must be applied in
+     * order.
+     */
+    static class Operation implements Serializable {
+        final Type type;
+        final int index;
+        final int target;
+        final Component component;
+        final Alignment alignment;
+
+        Operation(Type type, int index, int target, Component component,
+                Alignment alignment) {
+            this.type = type;
+            this.index = index;
+            this.target = target;
+            this.component = component;
+            this.alignment = alignment;
+        }
+    }
+
+    private final ArrayList<Operation> operations = new ArrayList<Operation>();
+
+    private boolean overflowed = true;
+
+    void inserted(int index, Component c) {
+        add(new Operation(Type.INSERT, index, index, c, null));
+    }
+
+    void removed(int index, Component c) {
+        add(new Operation(Type.REMOVE, index, index, c, null));
+    }
+
+    void moved(int from, int to, Component c) {
+        if (from != to) {
+            add(new Operation(Type.MOVE, from, to, c, null));
+        }
+    }
+
+    void aligned(int index, Component c, Alignment alignment) {
+        add(new Operation(Type.ALIGN, index, index, c, alignment));
+    }
+
+    /**
+     * @return <code>true</code> if new operations are logged,
+     *         <code>false</code> if the log has overflowed
+     */
+    boolean isLogging() {
+        return !overflowed;
+    }
+
+    /**
+     * Discards the logged operations. The next paint must send the complete
+     * state.
+     */
+    void overflow() {
+        operations.clear();
+        overflowed = true;
+    }
+
+    /**
+     * Starts a new log after the client has received the complete state or
+     * the logged changes.
+     */
+    void reset() {
+        operations.clear();
+        overflowed = false;
+    }
+
+    /**
+     * @param components
+     *            the current components of the layout
+     * @return <code>true</code> if the logged operations can be sent instead
+     *         of the complete state
+     */
+    boolean canSendOperations(ComponentList components) {
+        if (overflowed || operations.size() > components.size() / 2 + 8) {
+            return false;
+        }
+        /*
+         * Inserted components are painted inside the operation, so each of
+         * them must be painted once and must still be attached.
+         */
+        Map<Component, Component> inserted = new IdentityHashMap<Component, Component>();
+        for (Operation op : operations) {
+            if (op.type == Type.INSERT) {
+                if (inserted.put(op.component, op.component) != null
+                        || !components.contains(op.component)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    List<Operation> getOperations() {
+        return operations;
+    }
+
+    private void add(Operation op) {
+        if (overflowed) {
+            return;
+        }
+        if (operations.size() == MAX_OPERATIONS) {
+            overflow();
+        } else {
+            operations.add(op);
+        }
+    }
+}
@@ -0,0 +1,765 @@
+package org.vaadin.weelayout;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+
+/**
+ * Ordered child storage for {@link WeeLayout}. Keeps the components in a
+ * balanced tree ordered by position, where each node knows the size of its
+ * subtree, and an identity based component-to-node index next to it. The
+ * alignment and size hint of each component are stored in the same node.
+ * <p>
+ * <code>contains</code> and the alignment and size hint lookups take constant
+ * time. Positional access, <code>indexOf</code>, positional inserts, removals
+ * and moves take logarithmic time, so building or reordering a layout with n
+ * children costs O(n log n) however the operations are interleaved.
+ * Iterating over all components takes linear time.
+ * <p>
+ * The tree is a treap: the nodes are also ordered by random priorities, which
+ * keeps its depth logarithmic with high probability.
+ * <p>
+ * The serialized form contains the components as one array and the
+ * alignments and size hints as integer arrays in the same order, without the
+ * tree or the index. They are rebuilt in linear time when the deserialized
+ * list is first used, which keeps replicating sessions with many layouts
+ * cheap.
+ */
+@SuppressWarnings("serial")
+public class ComponentList implements Iterable<Component>, Serializable {
+
+    /**
+     * Per component information, also the node of the tree.
+     */
+    static class Slot {
+        Component component;
+        Alignment alignment;
+        int sizeHint = -1;
+
+        final int priority;
+        /** The number of nodes in the subtree of this node */
+        int size = 1;
+        Slot left;
+        Slot right;
+        Slot parent;
+
+        Slot(Component component, int priority) {
+            this.component = component;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * The root of the tree, <code>null</code> if the list is empty or has not
+     * been rebuilt after deserialization.
+     */
+    private transient Slot root;
+
+    /**
+     * The slots of the components, <code>null</code> after deserialization
+     * until first needed, see {@link #slots()}.
+     */
+    private transient Map<Component, Slot> slots = new IdentityHashMap<Component, Slot>();
+
+    /**
+     * Source of the node priorities.
+     */
+    private transient Random random;
+
+    /**
+     * Incremented by each structural modification, checked by the iterators.
+     */
+    private transient int modCount = 0;
+
+    /**
+     * The components in order. Only set while the slots have not been
+     * rebuilt after deserialization.
+     */
+    private transient Component[] serializedComponents;
+
+    /**
+     * Alignment bitmasks in component order, -1 for no alignment. Only set
+     * while the slots have not been rebuilt after deserialization.
+     */
+    private transient int[] serializedAlignments;
+
+    /**
+     * Size hints in component order, <code>null</code> if none were set. Only
+     * used while the slots have not been rebuilt after deserialization.
+     */
+    private transient int[] serializedSizeHints;
+
+    /**
+     * Receives the structural changes, if set.
+     */
+    private ChangeLog changeLog;
+
+    /**
+     * The view returned by {@link #asList()}.
+     */
+    private final List<Component> view = new OrderView();
+
+    /**
+     * An unmodifiable list view of the components.
+     */
+    private class OrderView extends AbstractList<Component> implements
+            Serializable {
+
+        @Override
+        public Component get(int index) {
+            return ComponentList.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return ComponentList.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Component
+                    && ComponentList.this.contains((Component) o);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return o instanceof Component ? ComponentList.this
+                    .indexOf((Component) o) : -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            // A component is in the list at most once
+            return indexOf(o);
+        }
+
+        @Override
+        public Iterator<Component> iterator() {
+            return ComponentList.this.iterator();
+        }
+    }
+
+    void setChangeLog(ChangeLog changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * @return the number of components in the list
+     */
+    public int size() {
+        return slots == null ? serializedComponents.length : size(root);
+    }
+
+    /**
+     * @return <code>true</code> if the list contains no components
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @param c
+     *            the component to look for
+     * @return <code>true</code> if the component is in this list
+     */
+    public boolean contains(Component c) {
+        return slots().containsKey(c);
+    }
+
+    /**
+     * @param index
+     *            the position of the component
+     * @return the component at the given position
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range
+     */
+    public Component get(int index) throws IndexOutOfBoundsException {
+        return slotAt(index).component;
+    }
+
+    /**
+     * @param c
+     *            the component to look up
+     * @return the position of the component, or -1 if it is not in the list
+     */
+    public int indexOf(Component c) {
+        Slot slot = slots().get(c);
+        return slot == null ? -1 : indexOf(slot);
+    }
+
+    /**
+     * Appends a component to the end of the list. The component must not
+     * already be in the list.
+     *
+     * @param c
+     *            the component to add
+     */
+    public void add(Component c) {
+        add(size(), c);
+    }
+
+    /**
+     * Inserts a component into the given position. The component must not
+     * already be in the list.
+     *
+     * @param index
+     *            the position of the new component. The components currently
+     *            in and after the position are shifted forwards.
+     * @param c
+     *            the component to add
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of range
+     */
+    public void add(int index, Component c) throws IndexOutOfBoundsException {
+        if (slots().containsKey(c)) {
+            throw new IllegalArgumentException(
+                    "Component is already in the layout");
+        }
+        checkPosition(index, size());
+        Slot slot = new Slot(c, nextPriority());
+        insert(index, slot);
+        slots.put(c, slot);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.inserted(index, c);
+        }
+    }
+
+    /**
+     * Removes the component from the list, including its alignment.
+     *
+     * @param c
+     *            the component to remove
+     * @return the position the component had, or -1 if it was not in the list
+     */
+    public int remove(Component c) {
+        Slot slot = slots().get(c);
+        if (slot == null) {
+            return -1;
+        }
+        int index = indexOf(slot);
+        unlink(index);
+        slots.remove(c);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, c);
+        }
+        return index;
+    }
+
+    /**
+     * Removes the component at the given position, including its alignment.
+     *
+     * @param index
+     *            the position of the component to remove
+     * @return the removed component
+     */
+    public Component remove(int index) {
+        Component c = slotAt(index).component;
+        unlink(index);
+        slots.remove(c);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, c);
+        }
+        return c;
+    }
+
+    /**
+     * Moves a component already in the list into a new position. Its
+     * alignment is preserved.
+     *
+     * @param c
+     *            the component to move
+     * @param newIndex
+     *            the new position of the component, counted after the
+     *            component has been taken out of its current position
+     * @return the previous position of the component
+     */
+    public int move(Component c, int newIndex) {
+        Slot slot = slots().get(c);
+        if (slot == null) {
+            throw new IllegalArgumentException(
+                    "Component is not in the layout");
+        }
+        int oldIndex = indexOf(slot);
+        if (oldIndex != newIndex) {
+            checkPosition(newIndex, size() - 1);
+            unlink(oldIndex);
+            insert(newIndex, slot);
+            modCount++;
+            if (changeLog != null) {
+                changeLog.moved(oldIndex, newIndex, c);
+            }
+        }
+        return oldIndex;
+    }
+
+    /**
+     * Replaces the component at the given position. The new component must
+     * not already be in the list. The alignment of the old component is
+     * discarded.
+     *
+     * @param index
+     *            the position to replace
+     * @param c
+     *            the new component
+     * @return the replaced component
+     */
+    public Component set(int index, Component c) {
+        if (slots().containsKey(c)) {
+            throw new IllegalArgumentException(
+                    "Component is already in the layout");
+        }
+        Slot slot = slotAt(index);
+        Component old = slot.component;
+        slots.remove(old);
+        slot.component = c;
+        slot.alignment = null;
+        slot.sizeHint = -1;
+        slots.put(c, slot);
+        modCount++;
+        if (changeLog != null) {
+            changeLog.removed(index, old);
+            changeLog.inserted(index, c);
+        }
+        return old;
+    }
+
+    /**
+     * Removes all components from the list.
+     */
+    public void clear() {
+        root = null;
+        slots = new IdentityHashMap<Component, Slot>();
+        serializedComponents = null;
+        serializedAlignments = null;
+        serializedSizeHints = null;
+        modCount++;
+        if (changeLog != null) {
+            changeLog.overflow();
+        }
+    }
+
+    /**
+     * @param c
+     *            the component
+     * @return the alignment set for the component, or <code>null</code> if no
+     *         alignment has been set or the component is not in the list
+     */
+    public Alignment getAlignment(Component c) {
+        Slot slot = slots().get(c);
+        return slot == null ? null : slot.alignment;
+    }
+
+    /**
+     * Sets the alignment of a component in the list.
+     *
+     * @param c
+     *            the component
+     * @param alignment
+     *            the new alignment, or <code>null</code> to clear it
+     * @return <code>true</code> if the component is in the list
+     */
+    public boolean setAlignment(Component c, Alignment alignment) {
+        Slot slot = slots().get(c);
+        if (slot == null) {
+            return false;
+        }
+        slot.alignment = alignment;
+        // Avoid the index lookup when the change would not be logged
+        if (changeLog != null && changeLog.isLogging()) {
+            changeLog.aligned(indexOf(slot), c, alignment);
+        }
+        return true;
+    }
+
+    /**
+     * @return a new map containing the components which have an alignment
+     *         set, in the format accepted by
+     *         {@link com.vaadin.terminal.PaintTarget#addAttribute(String, Map)}
+     */
+    public Map<Component, Alignment> getAlignments() {
+        Map<Component, Alignment> alignments = new IdentityHashMap<Component, Alignment>();
+        for (Map.Entry<Component, Slot> entry : slots().entrySet()) {
+            if (entry.getValue().alignment != null) {
+                alignments.put(entry.getKey(), entry.getValue().alignment);
+            }
+        }
+        return alignments;
+    }
+
+    /**
+     * @param c
+     *            the component
+     * @return the size hint of the component in pixels, or -1 if none has
+     *         been set or the component is not in the list
+     */
+    public int getSizeHint(Component c) {
+        Slot slot = slots().get(c);
+        return slot == null ? -1 : slot.sizeHint;
+    }
+
+    /**
+     * Sets the size hint of a component in the list.
+     *
+     * @param c
+     *            the component
+     * @param sizeHint
+     *            the size in pixels, or -1 to clear it
+     * @return <code>true</code> if the component is in the list
+     */
+    public boolean setSizeHint(Component c, int sizeHint) {
+        Slot slot = slots().get(c);
+        if (slot == null) {
+            return false;
+        }
+        slot.sizeHint = sizeHint;
+        return true;
+    }
+
+    /**
+     * @return a new map containing the components which have a size hint
+     *         set, in the format accepted by
+     *         {@link com.vaadin.terminal.PaintTarget#addAttribute(String, Map)}
+     */
+    public Map<Component, Integer> getSizeHints() {
+        Map<Component, Integer> sizeHints = new IdentityHashMap<Component, Integer>();
+        for (Map.Entry<Component, Slot> entry : slots().entrySet()) {
+            if (entry.getValue().sizeHint >= 0) {
+                sizeHints.put(entry.getKey(), entry.getValue().sizeHint);
+            }
+        }
+        return sizeHints;
+    }
+
+    /**
+     * @return an unmodifiable view of the components in order. Positional
+     *         access through the view takes logarithmic time, iterating
+     *         takes linear time.
+     */
+    public List<Component> asList() {
+        return view;
+    }
+
+    /**
+     * @return an iterator over the components in order, which can't remove
+     *         components
+     */
+    public Iterator<Component> iterator() {
+        slots();
+        return new Iterator<Component>() {
+            private Slot next = first(root);
+
+            private final int expectedModCount = modCount;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Component next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Component c = next.component;
+                next = successor(next);
+                return c;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the slots of the components, rebuilt from the serialized form
+     *         if needed
+     */
+    private Map<Component, Slot> slots() {
+        if (slots == null) {
+            int count = serializedComponents.length;
+            slots = new IdentityHashMap<Component, Slot>(count * 2);
+            // Components with the same alignment share one instance
+            Map<Integer, Alignment> alignments = new HashMap<Integer, Alignment>();
+            Slot[] order = new Slot[count];
+            for (int i = 0; i < count; i++) {
+                Slot slot = new Slot(serializedComponents[i], nextPriority());
+                int bitMask = serializedAlignments[i];
+                if (bitMask != -1) {
+                    slot.alignment = alignments.get(bitMask);
+                    if (slot.alignment == null) {
+                        slot.alignment = new Alignment(bitMask);
+                        alignments.put(bitMask, slot.alignment);
+                    }
+                }
+                if (serializedSizeHints != null) {
+                    slot.sizeHint = serializedSizeHints[i];
+                }
+                slots.put(slot.component, slot);
+                order[i] = slot;
+            }
+            root = build(order);
+            serializedComponents = null;
+            serializedAlignments = null;
+            serializedSizeHints = null;
+        }
+        return slots;
+    }
+
+    private int nextPriority() {
+        if (random == null) {
+            random = new Random();
+        }
+        return random.nextInt();
+    }
+
+    private static void checkPosition(int index, int size) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + size);
+        }
+    }
+
+    private Slot slotAt(int index) {
+        slots();
+        if (index < 0 || index >= size(root)) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + size(root));
+        }
+        Slot slot = root;
+        while (true) {
+            int leftSize = size(slot.left);
+            if (index < leftSize) {
+                slot = slot.left;
+            } else if (index == leftSize) {
+                return slot;
+            } else {
+                index -= leftSize + 1;
+                slot = slot.right;
+            }
+        }
+    }
+
+    private static int indexOf(Slot slot) {
+        int index = size(slot.left);
+        for (Slot s = slot; s.parent != null; s = s.parent) {
+            if (s == s.parent.right) {
+                index += size(s.parent.left) + 1;
+            }
+        }
+        return index;
+    }
+
+    private void insert(int index, Slot slot) {
+        Slot[] parts = new Slot[2];
+        split(root, index, parts);
+        root = merge(merge(parts[0], slot), parts[1]);
+    }
+
+    /**
+     * Takes the slot at the given position out of the tree.
+     */
+    private void unlink(int index) {
+        Slot[] parts = new Slot[2];
+        split(root, index, parts);
+        Slot before = parts[0];
+        split(parts[1], 1, parts);
+        Slot slot = parts[0];
+        root = merge(before, parts[1]);
+        slot.left = null;
+        slot.right = null;
+        slot.parent = null;
+        slot.size = 1;
+    }
+
+    private static int size(Slot slot) {
+        return slot == null ? 0 : slot.size;
+    }
+
+    /**
+     * Recalculates the size of the subtree and links the children back to
+     * the slot.
+     */
+    private static void update(Slot slot) {
+        slot.size = 1 + size(slot.left) + size(slot.right);
+        if (slot.left != null) {
+            slot.left.parent = slot;
+        }
+        if (slot.right != null) {
+            slot.right.parent = slot;
+        }
+    }
+
+    /**
+     * Splits the tree into the first <code>count</code> slots and the rest,
+     * stored into <code>parts</code>.
+     */
+    private static void split(Slot slot, int count, Slot[] parts) {
+        if (slot == null) {
+            parts[0] = null;
+            parts[1] = null;
+            return;
+        }
+        if (size(slot.left) >= count) {
+            split(slot.left, count, parts);
+            slot.left = parts[1];
+            update(slot);
+            parts[1] = slot;
+        } else {
+            split(slot.right, count - size(slot.left) - 1, parts);
+            slot.right = parts[0];
+            update(slot);
+            parts[0] = slot;
+        }
+        slot.parent = null;
+    }
+
+    /**
+     * Joins two trees, all slots of the first one coming before the second
+     * one.
+     */
+    private static Slot merge(Slot first, Slot second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        Slot slot;
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            slot = first;
+        } else {
+            second.left = merge(first, second.left);
+            slot = second;
+        }
+        update(slot);
+        slot.parent = null;
+        return slot;
+    }
+
+    /**
+     * Builds a tree of slots in the given order in linear time.
+     */
+    private static Slot build(Slot[] order) {
+        // The right spine of the tree built so far
+        ArrayList<Slot> spine = new ArrayList<Slot>();
+        for (Slot slot : order) {
+            Slot last = null;
+            while (!spine.isEmpty()
+                    && spine.get(spine.size() - 1).priority < slot.priority) {
+                last = spine.remove(spine.size() - 1);
+            }
+            slot.left = last;
+            if (last != null) {
+                last.parent = slot;
+            }
+            if (!spine.isEmpty()) {
+                Slot parent = spine.get(spine.size() - 1);
+                parent.right = slot;
+                slot.parent = parent;
+            }
+            spine.add(slot);
+        }
+        if (spine.isEmpty()) {
+            return null;
+        }
+        Slot root = spine.get(0);
+        updateSizes(root);
+        return root;
+    }
+
+    private static int updateSizes(Slot slot) {
+        if (slot == null) {
+            return 0;
+        }
+        slot.size = 1 + updateSizes(slot.left) + updateSizes(slot.right);
+        return slot.size;
+    }
+
+    private static Slot first(Slot slot) {
+        if (slot != null) {
+            while (slot.left != null) {
+                slot = slot.left;
+            }
+        }
+        return slot;
+    }
+
+    private static Slot successor(Slot slot) {
+        if (slot.right != null) {
+            return first(slot.right);
+        }
+        while (slot.parent != null && slot == slot.parent.right) {
+            slot = slot.parent;
+        }
+        return slot.parent;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        if (slots == null) {
+            // Not used since deserialized, the arrays are still valid
+            out.writeObject(serializedComponents);
+            out.writeObject(serializedAlignments);
+            out.writeObject(serializedSizeHints);
+            return;
+        }
+        int count = size(root);
+        Component[] components = new Component[count];
+        int[] alignments = new int[count];
+        int[] sizeHints = null;
+        int i = 0;
+        for (Slot slot = first(root); slot != null; slot = successor(slot), i++) {
+            components[i] = slot.component;
+            alignments[i] = slot.alignment == null ? -1 : slot.alignment
+                    .getBitMask();
+            if (slot.sizeHint != -1) {
+                if (sizeHints == null) {
+                    sizeHints = new int[count];
+                    Arrays.fill(sizeHints, -1);
+                }
+                sizeHints[i] = slot.sizeHint;
+            }
+        }
+        out.writeObject(components);
+        out.writeObject(alignments);
+        out.writeObject(sizeHints);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        serializedComponents = (Component[]) in.readObject();
+        serializedAlignments = (int[]) in.readObject();
+        serializedSizeHints = (int[]) in.readObject();
+        if (serializedAlignments.length != serializedComponents.length
+                || (serializedSizeHints != null
+                        && serializedSizeHints.length != serializedComponents.length)) {
+            throw new IOException("Corrupted ComponentList");
+        }
+        // The components may not be completely deserialized yet, so the
+        // slots and the tree are built later
+        slots = null;
+        root = null;
+    }
+}
@@ -0,0 +1,197 @@
+package org.vaadin.weelayout;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vaadin.Application;
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Paintable;
+import com.vaadin.terminal.Paintable.RepaintRequestListener;
+
+/**
+ * The {@link PaintTarget} calls made while painting a component subtree,
+ * recorded so that they can be replayed into a later paint target.
+ * <p>
+ * The calls are recorded instead of the serialized UIDL, so that the paint
+ * target still registers the painted components, resources and variables
+ * when the tape is replayed. Only painting the components, i.e. their
+ * <code>paintContent</code> methods, is skipped.
+ */
+class PaintTape {
+
+    private static final class Call {
+        final Method method;
+        final Object[] args;
+
+        Call(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    private static final Method START_PAINTABLE_TAG;
+    private static final Method START_TAG;
+    private static final Method END_TAG;
+
+    static {
+        try {
+            START_PAINTABLE_TAG = PaintTarget.class.getMethod("startTag",
+                    Paintable.class, String.class);
+            START_TAG = PaintTarget.class.getMethod("startTag", String.class);
+            END_TAG = PaintTarget.class.getMethod("endTag", String.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final List<Call> calls = new ArrayList<Call>();
+
+    /** The components painted on the tape */
+    private final List<Paintable> paintables = new ArrayList<Paintable>();
+
+    /**
+     * False if a component was painted as a cached reference while
+     * recording, so the tape can't be replayed into a complete paint.
+     */
+    private boolean complete = true;
+
+    private RepaintRequestListener listener;
+
+    /** The room reserved for the tape, null if none */
+    private WeeLayoutPaintCache.Usage usage;
+
+    /**
+     * @return a paint target that forwards all calls to the given target and
+     *         records them on this tape
+     */
+    PaintTarget record(final PaintTarget target) {
+        return (PaintTarget) Proxy.newProxyInstance(PaintTarget.class
+                .getClassLoader(), new Class<?>[] { PaintTarget.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(this, args);
+                        }
+                        Object result = invokeTarget(target, method, args);
+                        calls.add(new Call(method, args));
+                        if (START_PAINTABLE_TAG.equals(method)) {
+                            paintables.add((Paintable) args[0]);
+                            if (Boolean.TRUE.equals(result)) {
+                                complete = false;
+                            }
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Makes the recorded calls on the given target. Components the target
+     * reports as cached are painted as references only, as
+     * {@link com.vaadin.ui.AbstractComponent#paint(PaintTarget)} would.
+     */
+    void replay(PaintTarget target) throws PaintException {
+        // Depth of the cached component being skipped, 0 if none
+        int skipDepth = 0;
+        for (Call call : calls) {
+            if (skipDepth > 0) {
+                if (START_PAINTABLE_TAG.equals(call.method)
+                        || START_TAG.equals(call.method)) {
+                    skipDepth++;
+                    continue;
+                } else if (!END_TAG.equals(call.method) || --skipDepth > 0) {
+                    continue;
+                }
+            }
+            Object result = invokeTarget(target, call.method, call.args);
+            if (START_PAINTABLE_TAG.equals(call.method)
+                    && Boolean.TRUE.equals(result)) {
+                skipDepth = 1;
+            }
+        }
+    }
+
+    private static Object invokeTarget(PaintTarget target, Method method,
+            Object[] args) throws PaintException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PaintException) {
+                throw (PaintException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PaintException(String.valueOf(cause));
+        } catch (IllegalAccessException e) {
+            throw new PaintException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the tape is missing the contents of some
+     *         components
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of recorded calls
+     */
+    int size() {
+        return calls.size();
+    }
+
+    /**
+     * Reserves room for the tape within the limits of the application, see
+     * {@link WeeLayoutPaintCache}.
+     *
+     * @return <code>false</code> if the tape does not fit
+     */
+    boolean reserve(Application application) {
+        usage = WeeLayoutPaintCache.reserve(application, calls.size());
+        return usage != null;
+    }
+
+    /**
+     * Registers the listener to all components painted on the tape, until
+     * {@link #release()}. A component on which the listener is already
+     * registered, e.g. by an earlier tape before the session was
+     * deserialized, gets it only once.
+     */
+    void listen(RepaintRequestListener listener) {
+        this.listener = listener;
+        for (Paintable p : paintables) {
+            p.removeListener(listener);
+            p.addListener(listener);
+        }
+    }
+
+    /**
+     * Removes the listener registered with
+     * {@link #listen(RepaintRequestListener)} and frees the reserved room.
+     * Must only be called by the owning layout, as it modifies the
+     * components painted on the tape.
+     */
+    void release() {
+        if (listener != null) {
+            for (Paintable p : paintables) {
+                p.removeListener(listener);
+            }
+            listener = null;
+        }
+        if (usage != null) {
+            WeeLayoutPaintCache.release(usage, calls.size());
+            usage = null;
+        }
+    }
+}
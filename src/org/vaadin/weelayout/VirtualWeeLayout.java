@@ -0,0 +1,375 @@
+package org.vaadin.weelayout;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.vaadin.terminal.PaintException;
+import com.vaadin.terminal.PaintTarget;
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+
+/**
+ * A WeeLayout for very long lists of items. Instead of containing a component
+ * for each item, the layout asks a {@link DataProvider} for the items and a
+ * {@link ComponentFactory} for their components only for the range the client
+ * currently shows, plus a buffer on both sides. The rest of the items are
+ * represented by spacer elements on the client, so the scrollbar stays
+ * correct.
+ * <p>
+ * All items should have the same size in the layout direction, see
+ * {@link #setItemSize(int)}. The layout should have a defined size in the
+ * layout direction, since it scrolls its contents.
+ * <p>
+ * The child components are managed by the layout: adding, removing or moving
+ * them from the outside throws an {@link UnsupportedOperationException}.
+ * Change the items of the data provider and call {@link #refresh()} instead.
+ *
+ * @param <T>
+ *            the item type
+ */
+@SuppressWarnings("serial")
+@com.vaadin.ui.ClientWidget(org.vaadin.weelayout.client.ui.VVirtualWeeLayout.class)
+public class VirtualWeeLayout<T> extends WeeLayout {
+
+    /**
+     * Provides the items of a {@link VirtualWeeLayout}.
+     */
+    public interface DataProvider<T> extends Serializable {
+
+        /**
+         * @return the total number of items
+         */
+        int size();
+
+        /**
+         * @param startIndex
+         *            the index of the first item to return
+         * @param count
+         *            the number of items to return
+         * @return the items in the given range
+         */
+        List<T> getItems(int startIndex, int count);
+    }
+
+    /**
+     * Creates the components for the items of a {@link VirtualWeeLayout}.
+     */
+    public interface ComponentFactory<T> extends Serializable {
+
+        /**
+         * @param item
+         *            the item to show
+         * @return a new component presenting the item
+         */
+        Component createComponent(T item);
+    }
+
+    private final DataProvider<T> dataProvider;
+
+    private final ComponentFactory<T> componentFactory;
+
+    /**
+     * Index of the item shown by the first child component.
+     */
+    private int windowStart = 0;
+
+    private int itemSize = 30;
+
+    private int buffer = 20;
+
+    /**
+     * The default of the maximum number of items the client can show at a
+     * time.
+     */
+    private static final int DEFAULT_MAX_VISIBLE_ITEMS = 200;
+
+    private int maxVisibleItems;
+
+    /**
+     * Create a new virtual layout, initially showing the first
+     * <code>initialItems</code> items.
+     *
+     * @param direction
+     *            The direction in which the child components will flow
+     * @param dataProvider
+     *            provides the items
+     * @param componentFactory
+     *            creates the components for the items
+     * @param initialItems
+     *            the number of items to show before the client has reported
+     *            its viewport
+     */
+    public VirtualWeeLayout(Direction direction, DataProvider<T> dataProvider,
+            ComponentFactory<T> componentFactory, int initialItems) {
+        super(direction);
+        this.dataProvider = dataProvider;
+        this.componentFactory = componentFactory;
+        maxVisibleItems = Math.max(DEFAULT_MAX_VISIBLE_ITEMS, initialItems);
+        setWindow(0, initialItems);
+    }
+
+    /**
+     * Set the estimated size of an item in the layout direction in pixels.
+     * The size of the items which are not currently shown is calculated from
+     * this value.
+     *
+     * @param itemSize
+     *            the item size in pixels
+     */
+    public void setItemSize(int itemSize) {
+        this.itemSize = itemSize;
+        requestRepaint();
+    }
+
+    public int getItemSize() {
+        return itemSize;
+    }
+
+    /**
+     * Set the number of items which are kept rendered before and after the
+     * visible items.
+     *
+     * @param buffer
+     *            the number of items
+     */
+    public void setBuffer(int buffer) {
+        this.buffer = buffer;
+        requestRepaint();
+    }
+
+    public int getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Set the maximum number of items the client can show at a time. A larger
+     * range requested by the client is cut to this many items, so that the
+     * number of components created on the server stays bounded by this value
+     * plus twice the buffer, whatever the client sends. The default is 200 or
+     * the initial number of items, whichever is larger.
+     *
+     * @param maxVisibleItems
+     *            the maximum number of visible items
+     */
+    public void setMaxVisibleItems(int maxVisibleItems) {
+        if (maxVisibleItems < 1) {
+            throw new IllegalArgumentException(
+                    "At least one item must be visible");
+        }
+        this.maxVisibleItems = maxVisibleItems;
+    }
+
+    public int getMaxVisibleItems() {
+        return maxVisibleItems;
+    }
+
+    /**
+     * The absolute render mode is not supported, since the spacers
+     * representing the items outside the window are laid out in the normal
+     * flow.
+     */
+    @Override
+    public void setRenderMode(RenderMode renderMode) {
+        if (renderMode == RenderMode.ABSOLUTE) {
+            throw new IllegalArgumentException(
+                    "VirtualWeeLayout does not support the absolute render mode");
+        }
+        super.setRenderMode(renderMode);
+    }
+
+    /**
+     * Re-reads the shown items from the data provider and recreates their
+     * components. Call this after the items have changed.
+     */
+    public void refresh() {
+        int start = windowStart;
+        int end = windowStart + size();
+        windowStart = 0;
+        super.setComponents(Collections.<Component> emptyList(), null);
+        setWindow(start, end);
+    }
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException(
+                "The components of a VirtualWeeLayout are created from its data provider");
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void addComponent(Component c) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void addComponent(Component c, int index) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void addComponent(Component c, int index, Alignment alignment) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void addComponents(Collection<? extends Component> newComponents) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void setComponents(List<? extends Component> newComponents,
+            Map<Component, Alignment> alignments) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void removeComponent(Component c) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void removeAllComponents() {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the components are created from the data provider.
+     */
+    @Override
+    public void replaceComponent(Component oldComponent, Component newComponent) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the order of the components is the order of the items.
+     */
+    @Override
+    public void moveComponent(Component c, int newIndex) {
+        throw unsupported();
+    }
+
+    /**
+     * Not supported, the order of the components is the order of the items.
+     */
+    @Override
+    public void swapComponents(Component a, Component b) {
+        throw unsupported();
+    }
+
+    @Override
+    public void paintContent(PaintTarget target) throws PaintException {
+        super.paintContent(target);
+
+        target.addAttribute("vfirst", windowStart);
+        target.addAttribute("vtotal", dataProvider.size());
+        target.addAttribute("vitemsize", itemSize);
+        target.addAttribute("vbuffer", buffer);
+    }
+
+    @Override
+    public void changeVariables(Object source, Map<String, Object> variables) {
+        super.changeVariables(source, variables);
+
+        if (variables.containsKey("first") && variables.containsKey("last")) {
+            Object first = variables.get("first");
+            Object last = variables.get("last");
+            if (first instanceof Integer && last instanceof Integer) {
+                setVisibleRange((Integer) first, (Integer) last);
+            }
+        }
+    }
+
+    /**
+     * Shows the items visible on the client, from <code>first</code> to
+     * <code>last</code> (inclusive), and the buffers around them.
+     */
+    private void setVisibleRange(int first, int last) {
+        if (first < 0 || last < first) {
+            getLogger().fine(
+                    "Ignored an invalid visible range " + first + "-" + last);
+            return;
+        }
+        int total = dataProvider.size();
+        first = Math.min(first, total);
+        last = Math.min(last, total);
+        if (last - first >= maxVisibleItems) {
+            // More than the client can show, the server must not create
+            // components for all of them
+            last = first + maxVisibleItems - 1;
+        }
+        setWindow(first - buffer, last + 1 + buffer);
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(VirtualWeeLayout.class.getName());
+    }
+
+    /**
+     * Shows the items from <code>start</code> (inclusive) to <code>end</code>
+     * (exclusive). Components of the items which are already shown are kept.
+     */
+    private void setWindow(int start, int end) {
+        int total = dataProvider.size();
+        start = Math.max(0, Math.min(start, total));
+        end = Math.max(start, Math.min(end, total));
+
+        int oldStart = windowStart;
+        int oldEnd = windowStart + size();
+        if (start == oldStart && end == oldEnd) {
+            return;
+        }
+
+        List<Component> window = new ArrayList<Component>(end - start);
+        int keepFrom = Math.max(start, oldStart);
+        int keepTo = Math.min(end, oldEnd);
+        if (keepFrom < keepTo) {
+            window.addAll(createComponents(start, keepFrom));
+            for (int i = keepFrom; i < keepTo; i++) {
+                window.add(getComponent(i - oldStart));
+            }
+            window.addAll(createComponents(keepTo, end));
+        } else {
+            window.addAll(createComponents(start, end));
+        }
+
+        windowStart = start;
+        // Keep the alignments set for the items that stay in the window
+        super.setComponents(window, getComponentAlignments());
+    }
+
+    private List<Component> createComponents(int start, int end) {
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        List<T> items = dataProvider.getItems(start, end - start);
+        List<Component> created = new ArrayList<Component>(items.size());
+        for (T item : items) {
+            created.add(componentFactory.createComponent(item));
+        }
+        return created;
+    }
+}
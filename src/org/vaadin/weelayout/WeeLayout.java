@@ -1,15 +1,23 @@
 package org.vaadin.weelayout;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
+
+import org.vaadin.weelayout.client.ui.PackedLayoutInfo;
 
 import com.vaadin.event.LayoutEvents.LayoutClickEvent;
 import com.vaadin.event.LayoutEvents.LayoutClickListener;
 import com.vaadin.event.LayoutEvents.LayoutClickNotifier;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
+import com.vaadin.terminal.Paintable.RepaintRequestEvent;
+import com.vaadin.terminal.Paintable.RepaintRequestListener;
+import com.vaadin.terminal.Sizeable;
 import com.vaadin.terminal.gwt.client.EventId;
 import com.vaadin.ui.AbstractLayout;
 import com.vaadin.ui.Alignment;
@@ -26,19 +34,77 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
         VERTICAL, HORIZONTAL;
     }
 
+    /**
+     * How the client positions and sizes the child components.
+     */
+    public enum RenderMode {
+        /**
+         * Inline-block cells, with the relative sizes calculated from
+         * measured sizes. Works in all browsers.
+         */
+        INLINE,
+        /**
+         * A CSS flexbox, with the relative sizes distributed by the browser.
+         * Requires a browser supporting flexbox.
+         */
+        FLEX,
+        /**
+         * Absolutely positioned cells, with the offsets calculated from
+         * cached cell sizes. Changing one component only moves the
+         * components after it, without a reflow of the whole layout. Best
+         * suited for layouts with many fixed size components.
+         */
+        ABSOLUTE;
+    }
+
     private Direction direction;
 
+    private RenderMode renderMode = RenderMode.INLINE;
+
     private static final String CLICK_EVENT = EventId.LAYOUT_CLICK;
 
     /**
-     * Custom layout slots containing the components.
+     * A relative size of 100% as encoded in the packed layout info.
+     */
+    private static final int FULL_SIZE = 100 * PackedLayoutInfo.RELATIVE_SIZE_SCALE;
+
+    /**
+     * Custom layout slots containing the components and their alignments
+     * (horizontal + vertical).
+     */
+    private final ComponentList children = new ComponentList();
+
+    /**
+     * An unmodifiable view of the components in order. This used to be the
+     * modifiable <code>LinkedList</code> the components were stored in.
+     * Subclasses can still read it as a {@link List}, but modifying it throws
+     * an {@link UnsupportedOperationException}.
+     *
+     * @deprecated Use {@link #getComponentIterator()},
+     *             {@link #getComponent(int)},
+     *             {@link #getComponentIndex(Component)} and {@link #size()}
+     *             to read the components, and the methods of the layout to
+     *             modify them.
+     */
+    @Deprecated
+    protected final List<Component> components = children.asList();
+
+    /**
+     * Structural changes not yet painted to the client.
+     */
+    private final ChangeLog changes = new ChangeLog();
+
+    /**
+     * Should the layout paint only the changes when the client already knows
+     * the previous state.
      */
-    protected LinkedList<Component> components = new LinkedList<Component>();
+    private boolean deltaPainting = true;
 
     /**
-     * Mapping from components to alignments (horizontal + vertical).
+     * Time budget per frame in milliseconds for progressive rendering on the
+     * client, 0 if disabled.
      */
-    private final Map<Component, Alignment> componentToAlignment = new HashMap<Component, Alignment>();
+    private int progressiveTimeBudget = 0;
 
     /**
      * Should the layout clip any overflowing components outside the layout
@@ -48,6 +114,65 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
 
     private boolean smartRelatives;
 
+    /**
+     * Size in pixels of the components without their own size hint, -1 if
+     * none.
+     */
+    private int defaultSizeHint = -1;
+
+    /**
+     * Have the size hints changed since the previous paint.
+     */
+    private boolean sizeHintsChanged = false;
+
+    /**
+     * Has the user promised that the size of the layout never depends on its
+     * children.
+     */
+    private boolean layoutBoundary = false;
+
+    /**
+     * Has the broken layout boundary contract already been reported.
+     */
+    private boolean layoutBoundaryWarned = false;
+
+    /**
+     * Nesting depth of {@link #batch(Runnable)} calls. Repaint requests are
+     * postponed while the depth is above zero.
+     */
+    private int batchDepth = 0;
+
+    private boolean repaintPending = false;
+
+    /**
+     * Paint metrics of this layout, created when first needed.
+     */
+    private WeeLayoutMetrics metrics;
+
+    /**
+     * Are the complete paints of this layout recorded and replayed.
+     */
+    private boolean immutable = false;
+
+    /**
+     * The recorded complete paint of an immutable layout, null if none.
+     */
+    private transient PaintTape paintTape;
+
+    /**
+     * Discards the recorded paint when a component in the layout changes.
+     */
+    private final RepaintRequestListener paintCacheInvalidator = new RepaintRequestListener() {
+        public void repaintRequested(RepaintRequestEvent event) {
+            if (paintTape == null) {
+                // Left registered by a tape that was not serialized
+                event.getPaintable().removeListener(this);
+            } else {
+                discardPaintTape();
+            }
+        }
+    };
+
     @SuppressWarnings("unused")
     private WeeLayout() {
         // Force the user to specify the direction
@@ -63,6 +188,7 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      */
     public WeeLayout(Direction direction) {
         this.direction = direction;
+        children.setChangeLog(changes);
     }
 
     /**
@@ -74,12 +200,13 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      */
     @Override
     public void addComponent(Component c) {
-        components.add(c);
+        detachIfChild(c);
+        children.add(c);
         try {
             super.addComponent(c);
             requestRepaint();
         } catch (IllegalArgumentException e) {
-            components.remove(c);
+            children.remove(c);
             throw e;
         }
     }
@@ -139,12 +266,13 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      *            in and after the position are shifted forwards.
      */
     public void addComponent(Component c, int index) {
-        components.add(index, c);
+        index = detachIfChild(c, index);
+        children.add(index, c);
         try {
             super.addComponent(c);
             requestRepaint();
         } catch (IllegalArgumentException e) {
-            components.remove(c);
+            children.remove(c);
             throw e;
         }
     }
@@ -161,18 +289,43 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      *            the alignment for the component.
      */
     public void addComponent(Component c, int index, Alignment alignment) {
-        components.add(index, c);
+        index = detachIfChild(c, index);
+        children.add(index, c);
         try {
             super.addComponent(c);
             setComponentAlignment(c, alignment);
             requestRepaint();
         } catch (IllegalArgumentException e) {
-            components.remove(c);
-            componentToAlignment.remove(c);
+            children.remove(c);
             throw e;
         }
     }
 
+    /**
+     * Removes a component which is about to be re-added from its current
+     * position, so that the component list never contains duplicates.
+     */
+    private void detachIfChild(Component c) {
+        if (children.contains(c)) {
+            removeComponent(c);
+        }
+    }
+
+    /**
+     * Same as {@link #detachIfChild(Component)}, returns the insertion index
+     * adjusted for the removed position.
+     */
+    private int detachIfChild(Component c, int index) {
+        int oldIndex = children.indexOf(c);
+        if (oldIndex != -1) {
+            removeComponent(c);
+            if (oldIndex < index) {
+                index--;
+            }
+        }
+        return index;
+    }
+
     /**
      * Removes the component from this container.
      * 
@@ -181,14 +334,287 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      */
     @Override
     public void removeComponent(Component c) {
-        components.remove(c);
-        componentToAlignment.remove(c);
+        children.remove(c);
         super.removeComponent(c);
         requestRepaint();
     }
 
+    /**
+     * Adds the components into this container after the previous components.
+     * All components are attached in one pass and the layout is repainted only
+     * once. Components which are already in this layout are moved to the end.
+     * <p>
+     * If any of the components can't be added, none of them are: the
+     * components attached so far are detached, the original order is restored
+     * and the {@link IllegalArgumentException} is rethrown.
+     * 
+     * @param newComponents
+     *            the components to be added.
+     */
+    public void addComponents(final Collection<? extends Component> newComponents) {
+        batch(new Runnable() {
+            public void run() {
+                List<Component> oldOrder = new ArrayList<Component>(
+                        children.asList());
+                List<Component> attached = new ArrayList<Component>();
+                try {
+                    for (Component c : newComponents) {
+                        if (children.contains(c)) {
+                            children.move(c, children.size() - 1);
+                        } else {
+                            children.add(c);
+                            attached.add(c);
+                            attachChild(c);
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    rollback(oldOrder, attached);
+                    throw e;
+                }
+                requestRepaint();
+            }
+        });
+    }
+
+    /**
+     * Replaces the contents of this container with the given components.
+     * Components not in the list are removed, new components are added and
+     * the components already in this layout are kept attached and only
+     * reordered. All changes cause a single repaint.
+     * <p>
+     * If any of the new components can't be added, the layout is left
+     * unchanged and the {@link IllegalArgumentException} is rethrown.
+     * 
+     * @param newComponents
+     *            the new components of this layout in order.
+     * @param alignments
+     *            the alignments for the components, or <code>null</code>.
+     *            Components without a mapping get the default alignment,
+     *            also the ones already in this layout. Their size hints are
+     *            kept.
+     */
+    public void setComponents(final List<? extends Component> newComponents,
+            final Map<Component, Alignment> alignments) {
+        batch(new Runnable() {
+            public void run() {
+                List<Component> oldOrder = new ArrayList<Component>(
+                        children.asList());
+                List<Component> attached = new ArrayList<Component>();
+                Map<Component, Component> kept = new IdentityHashMap<Component, Component>();
+                try {
+                    for (Component c : newComponents) {
+                        if (children.contains(c)) {
+                            kept.put(c, c);
+                        } else {
+                            children.add(c);
+                            attached.add(c);
+                            attachChild(c);
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    rollback(oldOrder, attached);
+                    throw e;
+                }
+
+                // All new components are attached, detach the removed ones
+                for (Component c : oldOrder) {
+                    if (!kept.containsKey(c)) {
+                        children.remove(c);
+                        detachChild(c);
+                    }
+                }
+                reorder(newComponents, alignments);
+                requestRepaint();
+            }
+        });
+    }
+
+    /**
+     * Puts the components of this layout, all of which are in the given list,
+     * into the order of the list. When most of the components are already in
+     * place only the misplaced ones are moved, so that the change can be
+     * painted as a few move operations.
+     */
+    private void reorder(List<? extends Component> newOrder,
+            Map<Component, Alignment> alignments) {
+        List<Component> unique = new ArrayList<Component>(children.size());
+        Map<Component, Component> seen = new IdentityHashMap<Component, Component>();
+        int misplaced = 0;
+        for (Component c : newOrder) {
+            if (seen.put(c, c) == null) {
+                if (children.get(unique.size()) != c) {
+                    misplaced++;
+                }
+                unique.add(c);
+            }
+        }
+
+        if (misplaced > unique.size() / 4) {
+            Map<Component, Integer> sizeHints = children.getSizeHints();
+            children.clear();
+            for (Component c : unique) {
+                children.add(c);
+                if (alignments != null) {
+                    children.setAlignment(c, alignments.get(c));
+                }
+                Integer sizeHint = sizeHints.get(c);
+                if (sizeHint != null) {
+                    children.setSizeHint(c, sizeHint);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < unique.size(); i++) {
+            Component c = unique.get(i);
+            if (children.get(i) != c) {
+                children.move(c, i);
+            }
+            Alignment alignment = alignments != null ? alignments.get(c)
+                    : null;
+            Alignment current = children.getAlignment(c);
+            if (alignment == null ? current != null : !alignment
+                    .equals(current)) {
+                children.setAlignment(c, alignment);
+            }
+        }
+    }
+
+    /**
+     * Removes all components from this container in one pass, causing a
+     * single repaint.
+     */
+    @Override
+    public void removeAllComponents() {
+        batch(new Runnable() {
+            public void run() {
+                List<Component> removed = new ArrayList<Component>(
+                        children.asList());
+                children.clear();
+                for (Component c : removed) {
+                    detachChild(c);
+                }
+                requestRepaint();
+            }
+        });
+    }
+
+    /**
+     * Runs the given modifications so that the layout is repainted only once
+     * afterwards, no matter how many components are added, removed or
+     * realigned inside the batch. Batches can be nested, the repaint is
+     * requested when the outermost batch finishes.
+     * 
+     * @param modifications
+     *            the code modifying this layout.
+     */
+    public void batch(Runnable modifications) {
+        batchDepth++;
+        try {
+            modifications.run();
+        } finally {
+            if (--batchDepth == 0 && repaintPending) {
+                repaintPending = false;
+                requestRepaint();
+            }
+        }
+    }
+
+    @Override
+    public void requestRepaint() {
+        discardPaintTape();
+        if (batchDepth > 0) {
+            repaintPending = true;
+        } else {
+            if (WeeLayoutMetrics.isCollecting()) {
+                getMetrics().repaintRequested(this);
+            }
+            super.requestRepaint();
+        }
+    }
+
+    /**
+     * Returns the paint metrics of this layout. The metrics are only updated
+     * while {@link WeeLayoutMetrics#isCollecting()} is <code>true</code>.
+     * 
+     * @return the metrics of this layout
+     */
+    public WeeLayoutMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new WeeLayoutMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Does the {@link AbstractLayout} bookkeeping for a component added into
+     * the component list.
+     */
+    private void attachChild(Component c) {
+        super.addComponent(c);
+    }
+
+    /**
+     * Does the {@link AbstractLayout} bookkeeping for a component removed
+     * from the component list.
+     */
+    private void detachChild(Component c) {
+        super.removeComponent(c);
+    }
+
+    /**
+     * Undoes a failed bulk addition: detaches the components attached so far
+     * and restores the previous component order.
+     */
+    private void rollback(List<Component> oldOrder, List<Component> attached) {
+        for (int i = attached.size() - 1; i >= 0; i--) {
+            Component c = attached.get(i);
+            children.remove(c);
+            if (c.getParent() == this) {
+                detachChild(c);
+            }
+        }
+        for (int i = 0; i < oldOrder.size(); i++) {
+            children.move(oldOrder.get(i), i);
+        }
+    }
+
     @Override
     public void paintContent(PaintTarget target) throws PaintException {
+        if (!immutable || !target.isFullRepaint()) {
+            paintLayout(target);
+            return;
+        }
+        if (paintTape != null) {
+            // Nothing has changed since the tape was recorded
+            WeeLayoutPaintCache.hit();
+            paintTape.replay(target);
+            changes.reset();
+            sizeHintsChanged = false;
+            return;
+        }
+        WeeLayoutPaintCache.miss();
+        PaintTape tape = new PaintTape();
+        paintLayout(tape.record(target));
+        if (tape.isComplete() && tape.reserve(getApplication())) {
+            paintTape = tape;
+            tape.listen(paintCacheInvalidator);
+        }
+    }
+
+    private void discardPaintTape() {
+        if (paintTape != null) {
+            paintTape.release();
+            paintTape = null;
+        }
+    }
+
+    private void paintLayout(PaintTarget target) throws PaintException {
+        final boolean collectMetrics = WeeLayoutMetrics.isCollecting();
+        final long start = collectMetrics ? System.nanoTime() : 0;
+        int childrenPainted = 0;
+        int alignmentsPainted = 0;
+
         super.paintContent(target);
 
         // Specify direction
@@ -206,37 +632,165 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
             target.addAttribute("smart", true);
         }
 
-        // Adds all items in all the locations
-        for (Component c : components) {
-            // Paint child component UIDL
-            c.paint(target);
+        // Specify layout boundary, which needs a defined size
+        if (layoutBoundary) {
+            if (getWidth() >= 0 && getHeight() >= 0) {
+                target.addAttribute("boundary", true);
+            } else if (!layoutBoundaryWarned) {
+                layoutBoundaryWarned = true;
+                getLogger().warning(
+                        "A WeeLayout with an undefined size can't be a "
+                                + "layout boundary, the boundary is ignored");
+            }
         }
 
-        // Add child component alignment info to layout tag
-        target.addAttribute("alignments", componentToAlignment);
-    }
+        // Specify render mode
+        if (renderMode != RenderMode.INLINE) {
+            target.addAttribute("mode", renderMode.name().toLowerCase());
+        }
 
-    public Iterator<Component> getComponentIterator() {
-        return components.iterator();
+        // Specify the size hint of the components without their own
+        if (defaultSizeHint >= 0) {
+            target.addAttribute("hint", defaultSizeHint);
+        }
+
+        // Specify progressive rendering
+        if (progressiveTimeBudget > 0) {
+            target.addAttribute("progressive", progressiveTimeBudget);
+        }
+
+        final boolean delta = deltaPainting && !target.isFullRepaint()
+                && changes.canSendOperations(children);
+        if (delta) {
+            // The client has the previous state, send only the changes
+            target.addAttribute("delta", true);
+            for (ChangeLog.Operation op : changes.getOperations()) {
+                paintOperation(target, op);
+                if (op.type == ChangeLog.Type.INSERT) {
+                    childrenPainted++;
+                } else if (op.type == ChangeLog.Type.ALIGN) {
+                    alignmentsPainted++;
+                }
+            }
+            if (sizeHintsChanged) {
+                target.addAttribute("hints", children.getSizeHints());
+            }
+        } else {
+            // Adds all items in all the locations
+            for (Component c : children) {
+                // Paint child component UIDL
+                c.paint(target);
+            }
+            childrenPainted = children.size();
+
+            // Add child component alignments and relative sizes to layout
+            // tag, by position
+            StringBuilder layoutInfo = new StringBuilder(children.size() * 2);
+            alignmentsPainted = packLayoutInfo(layoutInfo);
+            target.addAttribute("layout", layoutInfo.toString());
+
+            Map<Component, Integer> sizeHints = children.getSizeHints();
+            if (!sizeHints.isEmpty()) {
+                target.addAttribute("hints", sizeHints);
+            }
+        }
+        changes.reset();
+        sizeHintsChanged = false;
+
+        if (collectMetrics) {
+            getMetrics().painted(this, System.nanoTime() - start,
+                    childrenPainted, alignmentsPainted, delta);
+        }
     }
 
-    public void replaceComponent(Component oldComponent, Component newComponent) {
-        // Gets the locations
-        int oldLocation = -1;
-        int newLocation = -1;
-        int location = 0;
-        for (final Iterator<Component> i = components.iterator(); i.hasNext();) {
-            final Component component = i.next();
-
-            if (component == oldComponent) {
-                oldLocation = location;
+    /**
+     * Encodes the alignments and relative sizes of the components in order,
+     * in the format described in {@link PackedLayoutInfo}.
+     * 
+     * @return the number of alignments encoded
+     */
+    private int packLayoutInfo(StringBuilder layoutInfo) {
+        int aligned = 0;
+        for (Component c : children) {
+            int flags = 0;
+            Alignment alignment = children.getAlignment(c);
+            if (alignment != null) {
+                flags |= alignment.getBitMask()
+                        << PackedLayoutInfo.ALIGNMENT_SHIFT;
+                aligned++;
+            }
+            int width = packRelativeSize(c.getWidth(), c.getWidthUnits());
+            if (width == FULL_SIZE) {
+                flags |= PackedLayoutInfo.FULL_WIDTH;
+            } else if (width >= 0) {
+                flags |= PackedLayoutInfo.RELATIVE_WIDTH;
             }
-            if (component == newComponent) {
-                newLocation = location;
+            int height = packRelativeSize(c.getHeight(), c.getHeightUnits());
+            if (height == FULL_SIZE) {
+                flags |= PackedLayoutInfo.FULL_HEIGHT;
+            } else if (height >= 0) {
+                flags |= PackedLayoutInfo.RELATIVE_HEIGHT;
             }
+            PackedLayoutInfo.append(layoutInfo, flags);
+            if ((flags & PackedLayoutInfo.RELATIVE_WIDTH) != 0) {
+                PackedLayoutInfo.append(layoutInfo, width);
+            }
+            if ((flags & PackedLayoutInfo.RELATIVE_HEIGHT) != 0) {
+                PackedLayoutInfo.append(layoutInfo, height);
+            }
+        }
+        return aligned;
+    }
+
+    /**
+     * @return the relative size scaled to an integer, or -1 if the size is
+     *         not relative
+     */
+    private static int packRelativeSize(float size, int units) {
+        if (size < 0 || units != Sizeable.UNITS_PERCENTAGE) {
+            return -1;
+        }
+        return Math.round(size * PackedLayoutInfo.RELATIVE_SIZE_SCALE);
+    }
 
-            location++;
+    private void paintOperation(PaintTarget target, ChangeLog.Operation op)
+            throws PaintException {
+        target.startTag(op.type.tag);
+        target.addAttribute("index", op.index);
+        switch (op.type) {
+        case INSERT:
+            op.component.paint(target);
+            break;
+        case MOVE:
+            target.addAttribute("to", op.target);
+            break;
+        case ALIGN:
+            Alignment alignment = op.alignment == null ? Alignment.TOP_LEFT
+                    : op.alignment;
+            target.addAttribute("align", alignment.getBitMask());
+            break;
+        default:
+            break;
         }
+        target.endTag(op.type.tag);
+    }
+
+    @Override
+    public void detach() {
+        super.detach();
+        // The client side widget is gone, the next paint must be complete
+        changes.overflow();
+        discardPaintTape();
+    }
+
+    public Iterator<Component> getComponentIterator() {
+        return children.iterator();
+    }
+
+    public void replaceComponent(Component oldComponent, Component newComponent) {
+        // Gets the locations
+        int oldLocation = children.indexOf(oldComponent);
+        int newLocation = children.indexOf(newComponent);
 
         if (oldLocation == -1) {
             addComponent(newComponent);
@@ -244,24 +798,76 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
             removeComponent(oldComponent);
             addComponent(newComponent, oldLocation);
         } else {
+            // Swap the components, the moved component loses its alignment
             if (oldLocation > newLocation) {
-                components.remove(oldComponent);
-                components.add(newLocation, oldComponent);
-                components.remove(newComponent);
-                componentToAlignment.remove(newComponent);
-                components.add(oldLocation, newComponent);
+                children.move(oldComponent, newLocation);
+                children.move(newComponent, oldLocation);
+                children.setAlignment(newComponent, null);
             } else {
-                components.remove(newComponent);
-                components.add(oldLocation, newComponent);
-                components.remove(oldComponent);
-                componentToAlignment.remove(oldComponent);
-                components.add(newLocation, oldComponent);
+                children.move(newComponent, oldLocation);
+                children.move(oldComponent, newLocation);
+                children.setAlignment(oldComponent, null);
             }
 
             requestRepaint();
         }
     }
 
+    /**
+     * Moves a component of this container into a new position. Unlike
+     * removing and adding the component again, the component stays attached,
+     * keeps its alignment and is not repainted: the client moves the existing
+     * widget, which suits e.g. drag-to-reorder lists.
+     * 
+     * @param c
+     *            the component to move
+     * @param newIndex
+     *            the new position of the component, counted after the
+     *            component has been taken out of its current position
+     * @throws IndexOutOfBoundsException
+     *             if the new position is out of range
+     */
+    public void moveComponent(Component c, int newIndex) {
+        if (!children.contains(c)) {
+            throw new IllegalArgumentException(
+                    "Component must be added to layout before using moveComponent()");
+        }
+        if (newIndex < 0 || newIndex >= children.size()) {
+            throw new IndexOutOfBoundsException("Index: " + newIndex
+                    + ", Size: " + children.size());
+        }
+        if (children.move(c, newIndex) != newIndex) {
+            requestRepaint();
+        }
+    }
+
+    /**
+     * Swaps the positions of two components of this container. Both
+     * components stay attached and keep their alignments, see
+     * {@link #moveComponent(Component, int)}.
+     * 
+     * @param a
+     *            a component in this container
+     * @param b
+     *            another component in this container
+     */
+    public void swapComponents(Component a, Component b) {
+        int indexA = children.indexOf(a);
+        int indexB = children.indexOf(b);
+        if (indexA == -1 || indexB == -1) {
+            throw new IllegalArgumentException(
+                    "Components must be added to layout before using swapComponents()");
+        }
+        if (indexA == indexB) {
+            return;
+        }
+        Component first = indexA < indexB ? a : b;
+        Component second = indexA < indexB ? b : a;
+        children.move(second, Math.min(indexA, indexB));
+        children.move(first, Math.max(indexA, indexB));
+        requestRepaint();
+    }
+
     /**
      * Set the alignment of component in this layout. Only one direction is
      * affected, depending on the layout direction, i.e. only vertical alignment
@@ -272,8 +878,8 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      */
     public void setComponentAlignment(Component childComponent,
             Alignment alignment) {
-        if (components.contains(childComponent) && alignment != null) {
-            componentToAlignment.put(childComponent, alignment);
+        if (alignment != null
+                && children.setAlignment(childComponent, alignment)) {
             requestRepaint();
         } else {
             throw new IllegalArgumentException(
@@ -289,7 +895,7 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      * .vaadin.ui.Component)
      */
     public Alignment getComponentAlignment(Component childComponent) {
-        Alignment alignment = componentToAlignment.get(childComponent);
+        Alignment alignment = children.getAlignment(childComponent);
         if (alignment == null) {
             return Alignment.TOP_LEFT;
         } else {
@@ -297,6 +903,68 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
         }
     }
 
+    /**
+     * Tell the client the size of a component in the layout direction, so
+     * that the client doesn't need to measure it. The size is the whole space
+     * the component takes, including its caption and margins, e.g. the row
+     * height of a vertical layout. Ignored for components with a relative size
+     * in the layout direction.
+     * <p>
+     * A wrong hint makes the client lay out the other components as if the
+     * component had the hinted size. In the client debug mode, the hints are
+     * checked against the measured sizes and mismatches are reported in the
+     * debug console.
+     * 
+     * @param childComponent
+     *            a component in the layout
+     * @param pixels
+     *            the size in pixels, or -1 to remove the hint
+     */
+    public void setSizeHint(Component childComponent, int pixels) {
+        if (pixels < -1) {
+            throw new IllegalArgumentException("Invalid size hint " + pixels);
+        }
+        if (!children.setSizeHint(childComponent, pixels)) {
+            throw new IllegalArgumentException(
+                    "Component must be added to layout before using setSizeHint()");
+        }
+        sizeHintsChanged = true;
+        requestRepaint();
+    }
+
+    /**
+     * @param childComponent
+     *            a component in the layout
+     * @return the size hint set for the component in pixels, or -1 if none
+     */
+    public int getSizeHint(Component childComponent) {
+        return children.getSizeHint(childComponent);
+    }
+
+    /**
+     * Set the size hint of all components without their own size hint, see
+     * {@link #setSizeHint(Component, int)}. Useful when all components have
+     * the same size, e.g. rows of a fixed height.
+     * 
+     * @param pixels
+     *            the size in pixels, or -1 to remove the hint
+     */
+    public void setDefaultSizeHint(int pixels) {
+        if (pixels < -1) {
+            throw new IllegalArgumentException("Invalid size hint " + pixels);
+        }
+        defaultSizeHint = pixels;
+        requestRepaint();
+    }
+
+    /**
+     * @return the size hint of the components without their own size hint in
+     *         pixels, or -1 if none
+     */
+    public int getDefaultSizeHint() {
+        return defaultSizeHint;
+    }
+
     /**
      * Returns the index of the given component.
      * 
@@ -305,7 +973,7 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      * @return The index of the component or -1 if the component is not a child.
      */
     public int getComponentIndex(Component component) {
-        return components.indexOf(component);
+        return children.indexOf(component);
     }
 
     /**
@@ -318,7 +986,7 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      *             If the index is out of range.
      */
     public Component getComponent(int index) throws IndexOutOfBoundsException {
-        return components.get(index);
+        return children.get(index);
     }
 
     /**
@@ -327,7 +995,15 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
      * @return Component amount
      */
     public int size() {
-        return components.size();
+        return children.size();
+    }
+
+    /**
+     * @return the alignments set for the components, see
+     *         {@link ComponentList#getAlignments()}
+     */
+    Map<Component, Alignment> getComponentAlignments() {
+        return children.getAlignments();
     }
 
     /**
@@ -355,6 +1031,149 @@ public class WeeLayout extends AbstractLayout implements LayoutClickNotifier {
         this.smartRelatives = smartRelatives;
     }
 
+    /**
+     * Mark the layout as a layout boundary. A layout boundary promises that
+     * its own size never depends on its child components, so the client can
+     * handle size changes of the children inside the layout without laying
+     * out any of its ancestors again. This helps in deep layout trees where a
+     * small change would otherwise propagate up to the window.
+     * <p>
+     * Only a layout with a defined width and height (fixed or relative) can
+     * be a boundary. The boundary is ignored, with a logged warning, while
+     * either size is undefined. In the client debug mode, the layout also
+     * verifies that its size really did not change and reports it in the
+     * debug console if it did.
+     * 
+     * @param layoutBoundary
+     *            <code>true</code> to make the layout a layout boundary
+     */
+    public void setLayoutBoundary(boolean layoutBoundary) {
+        this.layoutBoundary = layoutBoundary;
+        layoutBoundaryWarned = false;
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if the layout is a layout boundary
+     */
+    public boolean isLayoutBoundary() {
+        return layoutBoundary;
+    }
+
+    /**
+     * Mark the layout and the components in it as immutable, e.g. a toolbar
+     * or a static form that is not changed after it has been built. The
+     * first complete paint of an immutable layout is recorded, and replayed
+     * on later complete paints, e.g. when the browser is refreshed, instead
+     * of painting the components again.
+     * <p>
+     * The recording is discarded automatically when the layout or any
+     * component in it requests a repaint, so changing an immutable layout
+     * is not an error, only a wasted recording. The recordings of the
+     * layouts of an application share the limits of
+     * {@link WeeLayoutPaintCache}, which also reports the hit rate.
+     * 
+     * @param immutable
+     *            <code>true</code> to cache the complete paints
+     */
+    public void setImmutable(boolean immutable) {
+        this.immutable = immutable;
+        if (!immutable) {
+            discardPaintTape();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the complete paints of the layout are
+     *         cached
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * Set whether the layout may paint only the structural changes (inserted,
+     * removed and moved components and changed alignments) made since the
+     * previous paint, instead of all the child components. The complete state
+     * is always painted when the client state is unknown, e.g. on the first
+     * paint or after a browser refresh. Enabled by default.
+     * 
+     * @param deltaPainting
+     *            <code>true</code> to paint only the changes when possible
+     */
+    public void setDeltaPainting(boolean deltaPainting) {
+        this.deltaPainting = deltaPainting;
+        changes.overflow();
+        requestRepaint();
+    }
+
+    /**
+     * @return <code>true</code> if the layout paints only the changes when
+     *         possible
+     */
+    public boolean isDeltaPainting() {
+        return deltaPainting;
+    }
+
+    /**
+     * Enable progressive rendering on the client. When enabled, the child
+     * components are rendered in chunks over several frames, in layout order,
+     * instead of all at once. This keeps the browser responsive when a large
+     * layout is rendered for the first time. Relative sizes are calculated
+     * after the last chunk.
+     * 
+     * @param timeBudget
+     *            the time in milliseconds the layout may spend rendering
+     *            children per frame, or 0 to render synchronously (the
+     *            default)
+     */
+    public void setProgressiveRendering(int timeBudget) {
+        if (timeBudget < 0) {
+            throw new IllegalArgumentException(
+                    "The time budget can't be negative");
+        }
+        progressiveTimeBudget = timeBudget;
+        requestRepaint();
+    }
+
+    /**
+     * @return the time in milliseconds the layout may spend rendering
+     *         children per frame, or 0 if progressive rendering is disabled
+     */
+    public int getProgressiveRendering() {
+        return progressiveTimeBudget;
+    }
+
+    /**
+     * Set how the client renders this layout. The flex mode lets the browser
+     * align the components and distribute the space between relative sized
+     * components, which avoids most of the measuring done in the inline mode.
+     * The absolute mode positions the components itself and measures only the
+     * components that changed. Relative sizes have the same meaning in all
+     * modes.
+     * 
+     * @param renderMode
+     *            the render mode, {@link RenderMode#INLINE} by default
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        if (renderMode == null) {
+            throw new IllegalArgumentException("The render mode can't be null");
+        }
+        this.renderMode = renderMode;
+        requestRepaint();
+    }
+
+    /**
+     * @return the render mode of this layout
+     */
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    private static Logger getLogger() {
+        return Logger.getLogger(WeeLayout.class.getName());
+    }
+
     public void addListener(LayoutClickListener listener) {
         addListener(CLICK_EVENT, LayoutClickEvent.class, listener,
                 LayoutClickListener.clickMethod);
@@ -0,0 +1,320 @@
+package org.vaadin.weelayout;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Paint and repaint counters of {@link WeeLayout}. Each layout has its own
+ * metrics, see {@link WeeLayout#getMetrics()}, and the metrics of all layouts
+ * are summed up in {@link #getAggregate()}, which can be exported as a JMX
+ * MBean with {@link #registerMBean()}.
+ * <p>
+ * Collecting the metrics is disabled by default and can be switched on with
+ * {@link #setEnabled(boolean)}, from code or through JMX. While disabled, the
+ * layouts only check the flag. Paint times include painting the child
+ * components, so the time of a nested layout is also included in the time of
+ * its parent.
+ * <p>
+ * {@link Listener}s are notified of every repaint request and paint while
+ * enabled. A listener can e.g. attribute the paints to the current request to
+ * find the layout trees behind a slow UIDL response. The listeners are global
+ * to the JVM, or to the class loader of the web application, and are notified
+ * of the layouts of all applications. A listener registered by an application
+ * must be removed with {@link #removeListener(Listener)} when the application
+ * is closed, or it is kept, together with everything it refers to, until the
+ * web application is undeployed. {@link #removeAllListeners()} removes all of
+ * them, e.g. when undeploying.
+ */
+@SuppressWarnings("serial")
+public class WeeLayoutMetrics implements WeeLayoutMetricsMBean, Serializable {
+
+    /**
+     * Receives the metrics of each paint as it happens.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a layout requests a repaint of itself.
+         */
+        void repaintRequested(WeeLayout layout);
+
+        /**
+         * Called after a layout has been painted.
+         *
+         * @param layout
+         *            the painted layout
+         * @param nanos
+         *            the duration of the paint in nanoseconds, including the
+         *            child components
+         * @param childrenPainted
+         *            the number of child components painted
+         * @param delta
+         *            <code>true</code> if only the changes were painted
+         */
+        void painted(WeeLayout layout, long nanos, int childrenPainted,
+                boolean delta);
+    }
+
+    /** The JMX name of the aggregate metrics */
+    public static final String OBJECT_NAME = "org.vaadin.weelayout:type=WeeLayoutMetrics";
+
+    private static volatile boolean enabled = false;
+
+    private static final WeeLayoutMetrics aggregate = new WeeLayoutMetrics(
+            true);
+
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final AtomicLong repaintRequests = new AtomicLong();
+    private final AtomicLong paints = new AtomicLong();
+    private final AtomicLong deltaPaints = new AtomicLong();
+    private final AtomicLong childrenPainted = new AtomicLong();
+    private final AtomicLong alignmentsPainted = new AtomicLong();
+    private final AtomicLong paintNanos = new AtomicLong();
+    private final AtomicLong maxPaintNanos = new AtomicLong();
+
+    /**
+     * Number of children with an alignment in the latest complete paint, or
+     * the largest number in any complete paint in the aggregate metrics
+     */
+    private final AtomicInteger alignedChildCount = new AtomicInteger();
+
+    /**
+     * Are these the metrics of all layouts
+     */
+    private final boolean allLayouts;
+
+    WeeLayoutMetrics() {
+        this(false);
+    }
+
+    private WeeLayoutMetrics(boolean allLayouts) {
+        this.allLayouts = allLayouts;
+    }
+
+    /**
+     * @return <code>true</code> if the metrics are collected
+     */
+    public static boolean isCollecting() {
+        return enabled;
+    }
+
+    /**
+     * Switches collecting the metrics on or off for all layouts.
+     */
+    public static void setCollecting(boolean collecting) {
+        enabled = collecting;
+    }
+
+    /**
+     * @return the sum of the metrics of all layouts
+     */
+    public static WeeLayoutMetrics getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Adds a listener notified of the paints of all layouts. Remove it with
+     * {@link #removeListener(Listener)} when no longer needed, e.g. when the
+     * application that added it is closed.
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Removes all listeners, e.g. when the web application is undeployed.
+     */
+    public static void removeAllListeners() {
+        listeners.clear();
+    }
+
+    /**
+     * Registers the aggregate metrics in the platform MBean server as
+     * {@value #OBJECT_NAME}, unless already registered.
+     *
+     * @throws IllegalStateException
+     *             if the registration fails
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(aggregate, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(
+                    "Could not register the WeeLayout metrics MBean", e);
+        }
+    }
+
+    /**
+     * Removes the aggregate metrics from the platform MBean server, e.g. when
+     * the web application is undeployed.
+     */
+    public static synchronized void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(
+                    "Could not unregister the WeeLayout metrics MBean", e);
+        }
+    }
+
+    void repaintRequested(WeeLayout layout) {
+        repaintRequests.incrementAndGet();
+        aggregate.repaintRequests.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.repaintRequested(layout);
+        }
+    }
+
+    void painted(WeeLayout layout, long nanos, int children, int alignments,
+            boolean delta) {
+        record(nanos, children, alignments, delta);
+        aggregate.record(nanos, children, alignments, delta);
+        for (Listener listener : listeners) {
+            listener.painted(layout, nanos, children, delta);
+        }
+    }
+
+    private void record(long nanos, int children, int alignments,
+            boolean delta) {
+        paints.incrementAndGet();
+        if (delta) {
+            deltaPaints.incrementAndGet();
+        } else if (!allLayouts) {
+            alignedChildCount.set(alignments);
+        } else {
+            int max;
+            while (alignments > (max = alignedChildCount.get())) {
+                if (alignedChildCount.compareAndSet(max, alignments)) {
+                    break;
+                }
+            }
+        }
+        childrenPainted.addAndGet(children);
+        alignmentsPainted.addAndGet(alignments);
+        paintNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxPaintNanos.get())) {
+            if (maxPaintNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #isCollecting()}, for JMX.
+     */
+    public boolean isEnabled() {
+        return isCollecting();
+    }
+
+    /**
+     * Same as {@link #setCollecting(boolean)}, for JMX.
+     */
+    public void setEnabled(boolean enabled) {
+        setCollecting(enabled);
+    }
+
+    /**
+     * @return the number of repaint requests, not counting the ones merged by
+     *         {@link WeeLayout#batch(Runnable)}
+     */
+    public long getRepaintRequests() {
+        return repaintRequests.get();
+    }
+
+    /**
+     * @return the number of paints, both complete and delta paints
+     */
+    public long getPaints() {
+        return paints.get();
+    }
+
+    /**
+     * @return the number of paints that contained only the changes
+     */
+    public long getDeltaPaints() {
+        return deltaPaints.get();
+    }
+
+    /**
+     * @return the number of child components painted
+     */
+    public long getChildrenPainted() {
+        return childrenPainted.get();
+    }
+
+    /**
+     * @return the number of aligned children painted in complete paints and
+     *         of alignment changes painted in delta paints
+     */
+    public long getAlignmentsPainted() {
+        return alignmentsPainted.get();
+    }
+
+    /**
+     * @return the number of children with an alignment in the latest
+     *         complete paint of a layout, or the largest number in any
+     *         complete paint since the latest reset in the aggregate metrics
+     */
+    public int getAlignedChildCount() {
+        return alignedChildCount.get();
+    }
+
+    public double getTotalPaintTimeMillis() {
+        return paintNanos.get() / 1e6;
+    }
+
+    public double getMaxPaintTimeMillis() {
+        return maxPaintNanos.get() / 1e6;
+    }
+
+    public double getAveragePaintTimeMillis() {
+        long count = paints.get();
+        return count == 0 ? 0 : paintNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void reset() {
+        repaintRequests.set(0);
+        paints.set(0);
+        deltaPaints.set(0);
+        childrenPainted.set(0);
+        alignmentsPainted.set(0);
+        paintNanos.set(0);
+        maxPaintNanos.set(0);
+        alignedChildCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "repaint requests " + getRepaintRequests() + ", paints "
+                + getPaints() + " (" + getDeltaPaints() + " delta), "
+                + getChildrenPainted() + " children, "
+                + getAlignmentsPainted() + " alignments, "
+                + getTotalPaintTimeMillis() + " ms (max "
+                + getMaxPaintTimeMillis() + " ms)";
+    }
+}
@@ -0,0 +1,39 @@
+package org.vaadin.weelayout;
+
+/**
+ * JMX view of the aggregate {@link WeeLayoutMetrics} of all WeeLayouts in the
+ * JVM.
+ */
+public interface WeeLayoutMetricsMBean {
+
+    /**
+     * @return <code>true</code> if the metrics are being collected
+     */
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getRepaintRequests();
+
+    long getPaints();
+
+    long getDeltaPaints();
+
+    long getChildrenPainted();
+
+    long getAlignmentsPainted();
+
+    /**
+     * @return the largest number of children with an alignment in a complete
+     *         paint of any layout since the latest reset
+     */
+    int getAlignedChildCount();
+
+    double getTotalPaintTimeMillis();
+
+    double getMaxPaintTimeMillis();
+
+    double getAveragePaintTimeMillis();
+
+    void reset();
+}
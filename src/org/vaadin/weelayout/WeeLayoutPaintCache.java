@@ -0,0 +1,197 @@
+package org.vaadin.weelayout;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.vaadin.Application;
+
+/**
+ * Limits and statistics of the cached paints of immutable WeeLayouts, see
+ * {@link WeeLayout#setImmutable(boolean)}.
+ * <p>
+ * The recorded paint is stored in the layout itself, so it is garbage
+ * collected with the layout and its session. This class only keeps count of
+ * the recordings of each application, by a weak reference to the
+ * application. The limits apply per application, both to the number of
+ * cached layouts and to the total number of recorded paint calls, which is
+ * roughly proportional to the memory used. When a limit is reached, further
+ * layouts of the application are painted normally until some of its
+ * recordings are discarded. The recordings of other applications are never
+ * touched.
+ * <p>
+ * A layout discards its recording when it or any component in it requests a
+ * repaint, and when it is detached.
+ */
+public final class WeeLayoutPaintCache {
+
+    /**
+     * The recordings of one application.
+     */
+    static final class Usage {
+        int entries;
+        int calls;
+    }
+
+    private static int maxEntries = 100;
+
+    private static int maxCalls = 100000;
+
+    private static final Map<Application, Usage> usages = new WeakHashMap<Application, Usage>();
+
+    private static long hits = 0;
+
+    private static long misses = 0;
+
+    private static long rejections = 0;
+
+    private WeeLayoutPaintCache() {
+    }
+
+    /**
+     * Reserves room for a recording of the given application.
+     *
+     * @param application
+     *            the application of the layout, <code>null</code> if the
+     *            layout is painted outside an application
+     * @param calls
+     *            the number of recorded paint calls
+     * @return the usage to pass to {@link #release(Usage, int)} when the
+     *         recording is discarded, or <code>null</code> if the recording
+     *         does not fit within the limits
+     */
+    static synchronized Usage reserve(Application application, int calls) {
+        Usage usage = usages.get(application);
+        if (usage == null) {
+            usage = new Usage();
+            usages.put(application, usage);
+        }
+        if (usage.entries + 1 > maxEntries || usage.calls + calls > maxCalls) {
+            rejections++;
+            return null;
+        }
+        usage.entries++;
+        usage.calls += calls;
+        return usage;
+    }
+
+    /**
+     * Frees the room reserved with {@link #reserve(Application, int)}.
+     */
+    static synchronized void release(Usage usage, int calls) {
+        usage.entries--;
+        usage.calls -= calls;
+    }
+
+    static synchronized void hit() {
+        hits++;
+    }
+
+    static synchronized void miss() {
+        misses++;
+    }
+
+    /**
+     * Set the maximum number of cached layouts per application. Recordings
+     * already exceeding a lowered limit are kept until discarded.
+     */
+    public static synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum can't be negative");
+        }
+        WeeLayoutPaintCache.maxEntries = maxEntries;
+    }
+
+    public static synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Set the maximum total number of recorded paint calls per application.
+     * Recordings already exceeding a lowered limit are kept until discarded.
+     */
+    public static synchronized void setMaxCalls(int maxCalls) {
+        if (maxCalls < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum can't be negative");
+        }
+        WeeLayoutPaintCache.maxCalls = maxCalls;
+    }
+
+    public static synchronized int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * @return the number of cached layouts in all applications
+     */
+    public static synchronized int getEntryCount() {
+        int entries = 0;
+        for (Usage usage : usages.values()) {
+            entries += usage.entries;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the total number of recorded paint calls in all applications
+     */
+    public static synchronized int getCallCount() {
+        int calls = 0;
+        for (Usage usage : usages.values()) {
+            calls += usage.calls;
+        }
+        return calls;
+    }
+
+    /**
+     * @return the number of complete paints of immutable layouts replayed
+     *         from a recording
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of complete paints of immutable layouts that had
+     *         no recording
+     */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of recordings not cached because of the limits
+     */
+    public static synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return the share of complete paints replayed from a recording,
+     *         between 0 and 1
+     */
+    public static synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Zeroes the hit, miss and rejection counters.
+     */
+    public static synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        rejections = 0;
+    }
+
+    /**
+     * @return a summary of the cache usage
+     */
+    public static synchronized String getReport() {
+        return getEntryCount() + " layouts, " + getCallCount() + " calls, "
+                + hits + " hits, " + misses + " misses ("
+                + Math.round(getHitRate() * 100) + "% hit rate), "
+                + rejections + " rejections";
+    }
+}
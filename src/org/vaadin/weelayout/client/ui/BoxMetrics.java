@@ -0,0 +1,109 @@
+package org.vaadin.weelayout.client.ui;
+
+import org.vaadin.csstools.client.ComputedStyle;
+
+import com.google.gwt.dom.client.Element;
+
+/**
+ * Cached margin, border and padding of an element. The computed style is read
+ * only when the style names of the element or the theme have changed since
+ * the previous read, since those are practically the only things that change
+ * the box metrics between updates.
+ * <p>
+ * The hit and miss counters are shared by all caches in the page, including
+ * the caption height caches of the cells.
+ */
+public class BoxMetrics {
+
+	private static int hits = 0;
+	private static int misses = 0;
+
+	private String key;
+	private int[] margin;
+	private int[] border;
+	private int[] padding;
+
+	/**
+	 * Reads the metrics of the element unless they are already cached.
+	 *
+	 * @param element
+	 *            the element to measure
+	 * @param theme
+	 *            the current theme, or <code>null</code> if not known
+	 * @return <code>true</code> if the metrics were read from the DOM,
+	 *         <code>false</code> if the cached values are still valid
+	 */
+	boolean update(Element element, String theme) {
+		String newKey = theme + " " + element.getClassName();
+		if (newKey.equals(key)) {
+			hits++;
+			return false;
+		}
+		misses++;
+		key = newKey;
+		ComputedStyle cs = new ComputedStyle(element);
+		margin = cs.getMargin();
+		border = cs.getBorder();
+		padding = cs.getPadding();
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if the metrics have not been read or the
+	 *         cached values are no longer valid for the element
+	 */
+	boolean isStale(Element element, String theme) {
+		return key == null
+				|| !key.equals(theme + " " + element.getClassName());
+	}
+
+	/**
+	 * Forces the next {@link #update(Element, String)} to read the DOM.
+	 */
+	void invalidate() {
+		key = null;
+	}
+
+	int[] getMargin() {
+		return margin;
+	}
+
+	int[] getBorder() {
+		return border;
+	}
+
+	int[] getPadding() {
+		return padding;
+	}
+
+	static void hit() {
+		hits++;
+	}
+
+	static void miss() {
+		misses++;
+	}
+
+	/**
+	 * @return the number of times cached metrics were used instead of reading
+	 *         the DOM
+	 */
+	public static int getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of times the metrics had to be read from the DOM
+	 */
+	public static int getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Resets the hit and miss counters.
+	 */
+	public static void resetCounters() {
+		hits = 0;
+		misses = 0;
+	}
+}
@@ -10,6 +10,7 @@ import com.vaadin.terminal.gwt.client.BrowserInfo;
 import com.vaadin.terminal.gwt.client.UIDL;
 import com.vaadin.terminal.gwt.client.Util;
 import com.vaadin.terminal.gwt.client.VCaption;
+import com.vaadin.terminal.gwt.client.VConsole;
 import com.vaadin.terminal.gwt.client.RenderInformation.FloatSize;
 import com.vaadin.terminal.gwt.client.ui.AlignmentInfo;
 import com.vaadin.terminal.gwt.client.ui.Icon;
@@ -20,9 +21,57 @@ public class Cell extends SimplePanel {
 	private FloatSize relSize;
 	private Element lineBreak;
 	private boolean vertical;
+
 	private AlignmentInfo alignment;
 	private Element caption;
 
+	/** Is the cell an item of a flexbox */
+	private boolean flex = false;
+
+	/** Is the cell positioned absolutely by the layout */
+	private boolean absolute = false;
+
+	/*
+	 * Size of an absolutely positioned cell in parent direction and in the
+	 * other direction, at the time of the latest measureAbsolute call
+	 */
+	private int absoluteSize = 0;
+	private int absoluteCrossSize = 0;
+
+	/*
+	 * The position last written to the style of an absolutely positioned
+	 * cell, -1 if none
+	 */
+	private int absoluteOffset = -1;
+	private int absoluteCrossOffset = -1;
+
+	/*
+	 * Results of the latest measure call, used during the write phase of a
+	 * layout pass so that the DOM is not read between DOM writes.
+	 */
+	private static final int[] NO_MARGIN = new int[] { 0, 0, 0, 0 };
+	private int measuredRequiredSize = 0;
+	private int measuredCaptionHeight = 0;
+	private int[] measuredChildMargin = null;
+
+	/**
+	 * Exact size in parent direction given to a relative sized widget by the
+	 * layout, -1 if none
+	 */
+	private int allocatedSize = -1;
+
+	/** Cached box metrics of the child widget */
+	private final BoxMetrics childMetrics = new BoxMetrics();
+
+	/** What the cached caption height depends on, null if not cached */
+	private String captionKey;
+
+	/**
+	 * Size in parent direction given by the server, used instead of
+	 * measuring, -1 if none
+	 */
+	private int sizeHint = -1;
+
 	public Cell(Widget w, boolean vertical) {
 		/*
 		 * SPAN for IE6 & 7, DIV for all others (only pure inline elements can
@@ -46,34 +95,162 @@ public class Cell extends SimplePanel {
 		super.onAttach();
 
 		// For vertical alignment, add a line break
-		if (vertical) {
-			lineBreak = Document.get().createDivElement();
-			lineBreak.setClassName(VWeeLayout.CLASSNAME + "-linebreak");
-			getElement().getParentElement()
-					.insertAfter(lineBreak, getElement());
+		if (needsLineBreak()) {
+			addLineBreak();
 		}
 	}
 
 	@Override
 	protected void onDetach() {
 		// Cleanup possible line-break element
-		if (vertical) {
-			getElement().getParentElement().removeChild(lineBreak);
-		}
+		removeLineBreak();
 
 		super.onDetach();
 	}
 
+	private boolean needsLineBreak() {
+		return vertical && !flex && !absolute;
+	}
+
+	private void addLineBreak() {
+		lineBreak = Document.get().createDivElement();
+		lineBreak.setClassName(VWeeLayout.CLASSNAME + "-linebreak");
+		getElement().getParentElement().insertAfter(lineBreak, getElement());
+	}
+
+	private void removeLineBreak() {
+		if (lineBreak != null) {
+			lineBreak.removeFromParent();
+			lineBreak = null;
+		}
+	}
+
+	/**
+	 * Switches the cell between an inline-block cell and a flexbox item. A
+	 * flexbox item needs no line break, and its size in parent direction is
+	 * set by {@link #updateFlex(boolean)}.
+	 */
+	void setFlex(boolean flex) {
+		if (this.flex == flex) {
+			return;
+		}
+		this.flex = flex;
+		if (flex) {
+			removeLineBreak();
+		} else {
+			getElement().getStyle().clearProperty("flex");
+			if (needsLineBreak() && isAttached()) {
+				addLineBreak();
+			}
+		}
+	}
+
+	/**
+	 * Switches the cell between an inline-block cell and a cell positioned
+	 * absolutely by the layout with {@link #setAbsolutePosition(int, int)}.
+	 */
+	void setAbsolute(boolean absolute) {
+		if (this.absolute == absolute) {
+			return;
+		}
+		this.absolute = absolute;
+		if (absolute) {
+			removeLineBreak();
+		} else {
+			getElement().getStyle().clearProperty("top");
+			getElement().getStyle().clearProperty("left");
+			absoluteOffset = -1;
+			absoluteCrossOffset = -1;
+			if (needsLineBreak() && isAttached()) {
+				addLineBreak();
+			}
+		}
+	}
+
+	/**
+	 * Moves an absolutely positioned cell. The style is only written if the
+	 * position has changed.
+	 * 
+	 * @param offset
+	 *            the position in parent direction
+	 * @param crossOffset
+	 *            the position in the other direction
+	 */
+	void setAbsolutePosition(int offset, int crossOffset) {
+		if (offset != absoluteOffset) {
+			absoluteOffset = offset;
+			if (vertical) {
+				getElement().getStyle().setPropertyPx("top", offset);
+			} else {
+				getElement().getStyle().setPropertyPx("left", offset);
+			}
+		}
+		if (crossOffset != absoluteCrossOffset) {
+			absoluteCrossOffset = crossOffset;
+			if (vertical) {
+				getElement().getStyle().setPropertyPx("left", crossOffset);
+			} else {
+				getElement().getStyle().setPropertyPx("top", crossOffset);
+			}
+		}
+	}
+
+	/**
+	 * Lets the browser size a flexbox item with a relative size in parent
+	 * direction. The percentage becomes the share of the space left over by
+	 * the other cells, like in the inline mode: the shares are used as such
+	 * if they add up to less than 100%, and scaled down to fit otherwise.
+	 * 
+	 * @param distribute
+	 *            <code>false</code> if the layout does not give relative
+	 *            sizes to its cells, e.g. because its own size is undefined
+	 */
+	void updateFlex(boolean distribute) {
+		if (!flex) {
+			return;
+		}
+		if (distribute && hasRelativeSizeInParentDirection()) {
+			getElement().getStyle().setProperty("flex",
+					(getRelativeSizeInParentDirection() / 100) + " 1 0px");
+		} else {
+			getElement().getStyle().clearProperty("flex");
+		}
+	}
+
+	/**
+	 * Moves the cell element, and the possible line break following it, before
+	 * the given node. The cell stays attached, so the child widget is not
+	 * detached or re-rendered.
+	 * 
+	 * @param parent
+	 *            the layout element
+	 * @param before
+	 *            the node to move the cell before, or <code>null</code> to
+	 *            move it to the end
+	 */
+	void moveBefore(Element parent, Element before) {
+		parent.insertBefore(getElement(), before);
+		if (lineBreak != null) {
+			parent.insertBefore(lineBreak, before);
+		}
+	}
+
 	public Widget getChildWidget() {
 		return childWidget;
 	}
 
-	void updateRelativeSize(FloatSize size) {
+	/**
+	 * @return <code>true</code> if the relative size changed
+	 */
+	boolean updateRelativeSize(FloatSize size) {
+		final FloatSize old = relSize;
 		if (size == null) {
 			relSize = new FloatSize(-1, -1);
 		} else {
 			relSize = size;
 		}
+		return old == null || old.getWidth() != relSize.getWidth()
+				|| old.getHeight() != relSize.getHeight();
 	}
 
 	void updateRelativeSize(UIDL uidl) {
@@ -125,6 +302,10 @@ public class Cell extends SimplePanel {
 		}
 	}
 
+	AlignmentInfo getAlignment() {
+		return alignment;
+	}
+
 	void setAlignment(int align) {
 		alignment = new AlignmentInfo(align);
 		if (vertical) {
@@ -153,6 +334,7 @@ public class Cell extends SimplePanel {
 	}
 
 	void updateCaption(UIDL uidl, ApplicationConnection client) {
+		captionKey = null;
 		boolean hasIcon = uidl.hasAttribute("icon");
 		boolean hasText = uidl.hasAttribute("caption");
 		boolean hasDescription = uidl.hasAttribute("description");
@@ -229,4 +411,197 @@ public class Cell extends SimplePanel {
 			return Util.getRequiredWidth(getElement());
 		}
 	}
+
+	/**
+	 * Reads all the sizes the layout needs from the DOM. Should be called for
+	 * all cells in a row, without modifying the DOM in between, so that the
+	 * browser needs to calculate the layout only once.
+	 * <p>
+	 * The margins of the child widget and the caption height are cached, and
+	 * only read again when the style names of the widget, the theme or the
+	 * caption change. The required size is not read at all if the cell has a
+	 * size hint.
+	 * 
+	 * @param theme
+	 *            the current theme URI, or <code>null</code> if not known
+	 * @param defaultSizeHint
+	 *            the size hint of the layout for cells without their own, -1
+	 *            if none
+	 */
+	void measure(String theme, int defaultSizeHint) {
+		final int hint = sizeHint >= 0 ? sizeHint : defaultSizeHint;
+		if (hint >= 0 && !hasRelativeSizeInParentDirection()) {
+			measuredRequiredSize = hint;
+			if (ApplicationConnection.isDebugMode()) {
+				verifySizeHint(hint);
+			}
+		} else {
+			measuredRequiredSize = getRequiredSizeInParentDirection();
+		}
+
+		if (caption == null) {
+			measuredCaptionHeight = 0;
+		} else {
+			// The caption may wrap differently if the widget width changes
+			String key = theme + " "
+					+ childWidget.getElement().getStyle().getWidth();
+			if (key.equals(captionKey)) {
+				BoxMetrics.hit();
+			} else {
+				BoxMetrics.miss();
+				captionKey = key;
+				measuredCaptionHeight = caption.getOffsetHeight();
+			}
+		}
+
+		if (childWidget instanceof VWeeLayout) {
+			// Nested layouts subtract their own margins
+			measuredChildMargin = NO_MARGIN;
+		} else {
+			childMetrics.update(childWidget.getElement(), theme);
+			measuredChildMargin = childMetrics.getMargin();
+		}
+	}
+
+	/**
+	 * Reports a size hint that doesn't match the measured size in the debug
+	 * console.
+	 */
+	private void verifySizeHint(int hint) {
+		final int size = getRequiredSizeInParentDirection();
+		if (size != hint) {
+			VConsole.error("WeeLayout: the size hint " + hint + " of "
+					+ Util.getSimpleName(childWidget)
+					+ " differs from its measured size " + size);
+		}
+	}
+
+	void setSizeHint(int sizeHint) {
+		this.sizeHint = sizeHint;
+	}
+
+	/**
+	 * Reads the sizes of a flexbox item. The browser has already distributed
+	 * the space, so instead of the required size, the size given to the cell
+	 * is read and allocated to the child widget if it is relative sized in
+	 * parent direction.
+	 * 
+	 * @param theme
+	 *            the current theme URI, or <code>null</code> if not known
+	 */
+	void measureFlex(String theme) {
+		measuredRequiredSize = 0;
+		measuredCaptionHeight = caption == null ? 0 : caption
+				.getOffsetHeight();
+		captionKey = null;
+
+		if (childWidget instanceof VWeeLayout) {
+			measuredChildMargin = NO_MARGIN;
+		} else {
+			childMetrics.update(childWidget.getElement(), theme);
+			measuredChildMargin = childMetrics.getMargin();
+		}
+
+		if (hasRelativeSizeInParentDirection()) {
+			int size = vertical ? getElement().getClientHeight()
+					- measuredCaptionHeight - measuredChildMargin[0]
+					- measuredChildMargin[2] : getElement().getClientWidth()
+					- measuredChildMargin[1] - measuredChildMargin[3];
+			allocatedSize = Math.max(0, size);
+		} else {
+			allocatedSize = -1;
+		}
+	}
+
+	/**
+	 * Reads the sizes of an absolutely positioned cell. The cell is sized by
+	 * its contents, so its offset size is the space it needs.
+	 * 
+	 * @param theme
+	 *            the current theme URI, or <code>null</code> if not known
+	 */
+	void measureAbsolute(String theme) {
+		measuredCaptionHeight = caption == null ? 0 : caption
+				.getOffsetHeight();
+		captionKey = null;
+
+		if (childWidget instanceof VWeeLayout) {
+			measuredChildMargin = NO_MARGIN;
+		} else {
+			childMetrics.update(childWidget.getElement(), theme);
+			measuredChildMargin = childMetrics.getMargin();
+		}
+
+		absoluteSize = vertical ? getElement().getOffsetHeight()
+				: getElement().getOffsetWidth();
+		absoluteCrossSize = vertical ? getElement().getOffsetWidth()
+				: getElement().getOffsetHeight();
+		if (hasRelativeSizeInParentDirection()) {
+			measuredRequiredSize = vertical ? measuredCaptionHeight : 0;
+		} else {
+			measuredRequiredSize = absoluteSize;
+		}
+	}
+
+	/**
+	 * @return the size of an absolutely positioned cell in parent direction
+	 *         at the time of the latest {@link #measureAbsolute(String)} call
+	 */
+	int getAbsoluteSize() {
+		return absoluteSize;
+	}
+
+	/**
+	 * @return the size of an absolutely positioned cell in the other
+	 *         direction at the time of the latest
+	 *         {@link #measureAbsolute(String)} call
+	 */
+	int getAbsoluteCrossSize() {
+		return absoluteCrossSize;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #measure(String, int)} has been
+	 *         called
+	 */
+	boolean isMeasured() {
+		return measuredChildMargin != null;
+	}
+
+	/**
+	 * @return the required size in parent direction at the time of the latest
+	 *         {@link #measure(String, int)} call
+	 */
+	int getMeasuredRequiredSize() {
+		return measuredRequiredSize;
+	}
+
+	/**
+	 * @return the caption height at the time of the latest
+	 *         {@link #measure(String, int)} call
+	 */
+	int getMeasuredCaptionHeight() {
+		return measuredCaptionHeight;
+	}
+
+	/**
+	 * @return the margins of the child widget at the time of the latest
+	 *         {@link #measure(String, int)} call (top, right, bottom, left), or
+	 *         zeros if the cell has not been measured
+	 */
+	int[] getMeasuredChildMargin() {
+		return measuredChildMargin == null ? NO_MARGIN : measuredChildMargin;
+	}
+
+	/**
+	 * @return the exact size in parent direction allocated for the relative
+	 *         sized child widget, or -1 if the layout has not allocated any
+	 */
+	int getAllocatedSize() {
+		return allocatedSize;
+	}
+
+	void setAllocatedSize(int allocatedSize) {
+		this.allocatedSize = allocatedSize;
+	}
 }
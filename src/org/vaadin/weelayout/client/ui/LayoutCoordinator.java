@@ -0,0 +1,227 @@
+package org.vaadin.weelayout.client.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.vaadin.terminal.gwt.client.Paintable;
+import com.vaadin.terminal.gwt.client.VConsole;
+
+/**
+ * Lays out a tree of nested VWeeLayouts in one coordinated pass.
+ * <p>
+ * Without coordination, a VWeeLayout sizing its relative sized children makes
+ * each nested VWeeLayout lay itself out immediately in setWidth and again in
+ * setHeight, reading the DOM right after its parent wrote it. A tree N levels
+ * deep then forces the browser to calculate the layout twice per nested
+ * layout, and size changes of nested layouts with an undefined size are never
+ * passed back to their parents.
+ * <p>
+ * While a pass is running, nested layouts resized by their parents are only
+ * queued. The queued layouts are then laid out top-down, one tree level at a
+ * time: all layouts of a level first read their sizes, then all of them
+ * allocate space to their children, which queues the next level. After that,
+ * the sizes are reported bottom-up: a layout whose size changed is passed to
+ * its parent, which handles all its changed children at once as in
+ * requestLayout. If that resizes more layouts, the passes are repeated until
+ * the tree settles.
+ * <p>
+ * Only VWeeLayouts directly inside VWeeLayouts take part in a pass. Layouts
+ * inside other containers are laid out immediately, as before.
+ */
+class LayoutCoordinator {
+
+	/**
+	 * Rounds of top-down and bottom-up passes after which the tree is assumed
+	 * not to settle, e.g. because of a circular dependency between sizes
+	 */
+	private static final int MAX_ROUNDS = 10;
+
+	/** The running pass, null if none */
+	private static LayoutCoordinator current;
+
+	/** Tree depth of each layout in the pass, the root being at 0 */
+	private final HashMap<VWeeLayout, Integer> depths = new HashMap<VWeeLayout, Integer>();
+
+	/** The layouts in the pass by depth */
+	private final ArrayList<ArrayList<VWeeLayout>> levels = new ArrayList<ArrayList<VWeeLayout>>();
+
+	/** The layouts waiting for the top-down pass by depth */
+	private final ArrayList<ArrayList<VWeeLayout>> pending = new ArrayList<ArrayList<VWeeLayout>>();
+
+	private final HashSet<VWeeLayout> pendingLayouts = new HashSet<VWeeLayout>();
+
+	/** The layouts laid out in the current round, whose size may change */
+	private final HashSet<VWeeLayout> laidOut = new HashSet<VWeeLayout>();
+
+	/** Size of each layout as last seen by its parent */
+	private final HashMap<VWeeLayout, int[]> reportedSizes = new HashMap<VWeeLayout, int[]>();
+
+	/** Children whose size changed, by parent */
+	private final HashMap<VWeeLayout, Set<Paintable>> changedChildren = new HashMap<VWeeLayout, Set<Paintable>>();
+
+	private boolean rootResized = false;
+
+	private LayoutCoordinator() {
+	}
+
+	/**
+	 * Starts a pass with the layout as the root, unless a pass is already
+	 * running. The caller must call {@link #end()} if this returns
+	 * <code>true</code>.
+	 *
+	 * @return <code>true</code> if a new pass was started
+	 */
+	static boolean begin(VWeeLayout root) {
+		if (current != null) {
+			return false;
+		}
+		current = new LayoutCoordinator();
+		current.track(root, 0);
+		current.reportedSizes.put(root, new int[] { root.getActualWidth(),
+				root.getActualHeight() });
+		return true;
+	}
+
+	/**
+	 * Queues a nested layout that needs to be laid out because its size was
+	 * changed.
+	 *
+	 * @return <code>true</code> if the layout was queued, <code>false</code>
+	 *         if it is not part of a running pass and must be laid out
+	 *         immediately
+	 */
+	static boolean schedule(VWeeLayout layout) {
+		if (current == null) {
+			return false;
+		}
+		final Integer parentDepth = current.depths.get(layout
+				.getParentLayout());
+		if (parentDepth == null) {
+			return false;
+		}
+		final int depth = parentDepth + 1;
+		current.track(layout, depth);
+		if (current.pendingLayouts.add(layout)) {
+			current.getLevel(current.pending, depth).add(layout);
+		}
+		return true;
+	}
+
+	/**
+	 * Lays out the queued layouts and ends the pass.
+	 *
+	 * @return <code>true</code> if the size of the root layout changed
+	 *         because of its nested layouts
+	 */
+	static boolean end() {
+		final LayoutCoordinator coordinator = current;
+		try {
+			coordinator.settle();
+		} finally {
+			current = null;
+		}
+		return coordinator.rootResized;
+	}
+
+	private void track(VWeeLayout layout, int depth) {
+		if (!depths.containsKey(layout)) {
+			depths.put(layout, depth);
+			getLevel(levels, depth).add(layout);
+		}
+	}
+
+	private ArrayList<VWeeLayout> getLevel(
+			ArrayList<ArrayList<VWeeLayout>> lists, int depth) {
+		while (lists.size() <= depth) {
+			lists.add(new ArrayList<VWeeLayout>());
+		}
+		return lists.get(depth);
+	}
+
+	private void settle() {
+		int rounds = 0;
+		do {
+			if (++rounds > MAX_ROUNDS) {
+				VConsole.error("WeeLayout: nested layouts did not settle in "
+						+ MAX_ROUNDS + " rounds");
+				return;
+			}
+			allocateTopDown();
+			reportSizesBottomUp();
+		} while (!pendingLayouts.isEmpty());
+	}
+
+	/**
+	 * Lays out the queued layouts one level at a time. The reads of a level
+	 * are done before any of its writes.
+	 */
+	private void allocateTopDown() {
+		for (int depth = 0; depth < pending.size(); depth++) {
+			final ArrayList<VWeeLayout> level = pending.get(depth);
+			if (level.isEmpty()) {
+				continue;
+			}
+			pending.set(depth, new ArrayList<VWeeLayout>());
+			pendingLayouts.removeAll(level);
+			// Read phase
+			for (VWeeLayout layout : level) {
+				layout.measureAllocation();
+				if (!reportedSizes.containsKey(layout)) {
+					reportedSizes.put(layout, new int[] {
+							layout.getActualWidth(), layout.getActualHeight() });
+				}
+			}
+			// Write phase, queues the next level
+			for (VWeeLayout layout : level) {
+				layout.allocate();
+			}
+			laidOut.addAll(level);
+		}
+	}
+
+	/**
+	 * Passes the size changes of the layouts in the pass to their parents,
+	 * from the deepest level up.
+	 */
+	private void reportSizesBottomUp() {
+		for (int depth = levels.size() - 1; depth >= 0; depth--) {
+			final ArrayList<VWeeLayout> level = levels.get(depth);
+			for (VWeeLayout layout : level) {
+				final Set<Paintable> changed = changedChildren.remove(layout);
+				if (changed != null) {
+					layout.relayoutChildren(changed);
+					laidOut.add(layout);
+				}
+			}
+			for (VWeeLayout layout : level) {
+				if (!laidOut.contains(layout)) {
+					continue;
+				}
+				final int[] size = reportedSizes.get(layout);
+				if (layout.hasUndefinedSize()) {
+					layout.updateActualSize();
+				}
+				if (size[0] == layout.getActualWidth()
+						&& size[1] == layout.getActualHeight()) {
+					continue;
+				}
+				size[0] = layout.getActualWidth();
+				size[1] = layout.getActualHeight();
+				if (depth == 0) {
+					rootResized = true;
+				} else {
+					final VWeeLayout parent = layout.getParentLayout();
+					Set<Paintable> changed = changedChildren.get(parent);
+					if (changed == null) {
+						changed = new HashSet<Paintable>();
+						changedChildren.put(parent, changed);
+					}
+					changed.add(layout);
+				}
+			}
+		}
+		laidOut.clear();
+	}
+}
@@ -0,0 +1,59 @@
+package org.vaadin.weelayout.client.ui;
+
+/**
+ * Finds the longest increasing subsequence of the old positions of the cells,
+ * listed in their new order. The cells in that subsequence are already in the
+ * right order relative to each other and can stay where they are, so only the
+ * other cells need to be moved in the DOM.
+ */
+class LongestIncreasingSubsequence {
+
+	private LongestIncreasingSubsequence() {
+	}
+
+	/**
+	 * @param values
+	 *            the old position of each cell in the new order, or -1 for new
+	 *            cells, which are never part of the subsequence
+	 * @return for each position, <code>true</code> if the value is part of
+	 *         the longest increasing subsequence
+	 */
+	static boolean[] find(int[] values) {
+		final int n = values.length;
+		// tails[k] = index of the smallest tail of an increasing subsequence
+		// of length k + 1
+		final int[] tails = new int[n];
+		final int[] previous = new int[n];
+		int length = 0;
+
+		for (int i = 0; i < n; i++) {
+			if (values[i] < 0) {
+				continue;
+			}
+			// Binary search for the first tail not smaller than the value
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[tails[mid]] < values[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length) {
+				length++;
+			}
+		}
+
+		final boolean[] result = new boolean[n];
+		if (length > 0) {
+			for (int i = tails[length - 1]; i >= 0; i = previous[i]) {
+				result[i] = true;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,85 @@
+package org.vaadin.weelayout.client.ui;
+
+/**
+ * Format of the <code>layout</code> attribute, which carries the alignments
+ * and relative sizes of all children of a WeeLayout as integers in child
+ * order. The integers are sent as one string, in base 36 and separated by
+ * commas, so that the client parses them explicitly instead of relying on the
+ * coercion of a string array.
+ * <p>
+ * Each child starts with a flags word: the flags below in the lowest bits and
+ * the alignment bitmask above them, zero if no alignment is set. A child with
+ * a relative width or height other than 100% is followed by the relative
+ * size in hundredths of a percent, width first. A child with neither an
+ * alignment nor relative sizes takes one zero.
+ * <p>
+ * Compared to a map keyed by paintable ids and relative sizes parsed from
+ * the <code>"50%"</code> size strings of the children, the client decodes
+ * this in one pass without per child string handling.
+ */
+public final class PackedLayoutInfo {
+
+	/** The flags word is followed by the relative width */
+	public static final int RELATIVE_WIDTH = 1;
+
+	/** The flags word is followed by the relative height */
+	public static final int RELATIVE_HEIGHT = 1 << 1;
+
+	/** The width is 100%, not followed by the size */
+	public static final int FULL_WIDTH = 1 << 2;
+
+	/** The height is 100%, not followed by the size */
+	public static final int FULL_HEIGHT = 1 << 3;
+
+	/** Position of the alignment bitmask in the flags word */
+	public static final int ALIGNMENT_SHIFT = 4;
+
+	/** Relative sizes are sent multiplied by this */
+	public static final int RELATIVE_SIZE_SCALE = 100;
+
+	/** The radix of the encoded integers */
+	public static final int RADIX = 36;
+
+	/** The separator of the encoded integers */
+	public static final char SEPARATOR = ',';
+
+	private PackedLayoutInfo() {
+	}
+
+	/**
+	 * Appends an integer to an encoded attribute value.
+	 * 
+	 * @param encoded
+	 *            the integers encoded so far
+	 * @param value
+	 *            the integer to append
+	 */
+	public static void append(StringBuilder encoded, int value) {
+		if (encoded.length() > 0) {
+			encoded.append(SEPARATOR);
+		}
+		encoded.append(Integer.toString(value, RADIX));
+	}
+
+	/**
+	 * Decodes the integers of an attribute value.
+	 * 
+	 * @param encoded
+	 *            the attribute value
+	 * @return the integers in order
+	 * @throws NumberFormatException
+	 *             if the value is not in the format written by
+	 *             {@link #append(StringBuilder, int)}
+	 */
+	public static int[] decode(String encoded) throws NumberFormatException {
+		if (encoded.length() == 0) {
+			return new int[0];
+		}
+		final String[] parts = encoded.split(String.valueOf(SEPARATOR));
+		final int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i], RADIX);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,95 @@
+package org.vaadin.weelayout.client.ui;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Distributes whole pixels between relative sized cells so that the cells
+ * fill the available space exactly, without the one pixel gaps caused by
+ * rounding each percentage separately.
+ * <p>
+ * Each cell first gets the floor of its exact share. The pixels lost to
+ * rounding are then handed out one by one to the cells with the largest
+ * fractional remainders (largest remainder method). If the percentages add up
+ * to more than 100, the shares are scaled down to fit the available space;
+ * if they add up to less, the leftover space is left empty.
+ */
+class PixelDistribution {
+
+	private PixelDistribution() {
+	}
+
+	/**
+	 * @param available
+	 *            the space available for each cell, excluding the space used
+	 *            by the fixed size cells
+	 * @param percentages
+	 *            the relative size of each cell
+	 * @return the size of each cell in whole pixels
+	 */
+	static int[] distribute(int[] available, float[] percentages) {
+		final int count = percentages.length;
+		float total = 0;
+		for (float p : percentages) {
+			total += p;
+		}
+		final float divisor = total > 100 ? total : 100;
+
+		final int[] sizes = new int[count];
+		final double[] remainders = new double[count];
+		double exactTotal = 0;
+		int assigned = 0;
+		for (int i = 0; i < count; i++) {
+			double exact = Math.max(0, available[i]) * percentages[i]
+					/ divisor;
+			sizes[i] = (int) Math.floor(exact);
+			remainders[i] = exact - sizes[i];
+			exactTotal += exact;
+			assigned += sizes[i];
+		}
+
+		int leftover = (int) Math.round(exactTotal) - assigned;
+		if (leftover > 0) {
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int byRemainder = Double.compare(remainders[b],
+							remainders[a]);
+					return byRemainder != 0 ? byRemainder : a - b;
+				}
+			});
+			for (int i = 0; i < leftover && i < count; i++) {
+				sizes[order[i]]++;
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the space to report to ApplicationConnection, which sizes a
+	 * relative sized widget to <code>floor(space * percentage / 100)</code>,
+	 * so that the widget ends up with exactly the given size.
+	 *
+	 * @param size
+	 *            the wanted size in pixels
+	 * @param percentage
+	 *            the relative size of the widget
+	 * @return the space to report
+	 */
+	static int spaceFor(int size, float percentage) {
+		if (percentage <= 0) {
+			return size;
+		}
+		int space = (int) Math.ceil(size * 100.0 / percentage);
+		while (space > 0 && (int) (space * percentage / 100.0) > size) {
+			space--;
+		}
+		while ((int) (space * percentage / 100.0) < size) {
+			space++;
+		}
+		return space;
+	}
+}
@@ -0,0 +1,134 @@
+package org.vaadin.weelayout.client.ui;
+
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
+import com.google.gwt.user.client.Timer;
+import com.vaadin.terminal.gwt.client.ApplicationConnection;
+import com.vaadin.terminal.gwt.client.UIDL;
+
+/**
+ * Client side widget for the VirtualWeeLayout. Only a window of the items is
+ * rendered as cells. The items before and after the window are represented by
+ * spacer elements, sized from the estimated item size. When the user scrolls
+ * close to the edge of the rendered window, the currently visible range is
+ * sent to the server, which replies with a new window.
+ */
+public class VVirtualWeeLayout extends VWeeLayout {
+
+	public static final String CLASSNAME = VWeeLayout.CLASSNAME + "-virtual";
+
+	private final Element leadingSpacer;
+	private final Element trailingSpacer;
+
+	/** Index of the item in the first cell */
+	private int first = 0;
+
+	/** Total number of items */
+	private int total = 0;
+
+	/** Estimated size of an item in pixels */
+	private int itemSize = 30;
+
+	/** Number of items rendered outside the viewport on both sides */
+	private int buffer = 0;
+
+	/** Has a new window been requested but not yet received */
+	private boolean requestPending = false;
+
+	private final Timer scrollTimer = new Timer() {
+		@Override
+		public void run() {
+			checkVisibleRange();
+		}
+	};
+
+	public VVirtualWeeLayout() {
+		super();
+		leadingSpacer = createSpacer();
+		trailingSpacer = createSpacer();
+		getElement().appendChild(leadingSpacer);
+		getElement().appendChild(trailingSpacer);
+		addDomHandler(new ScrollHandler() {
+			public void onScroll(ScrollEvent event) {
+				// Wait for the scrolling to settle
+				scrollTimer.schedule(100);
+			}
+		}, ScrollEvent.getType());
+	}
+
+	private static Element createSpacer() {
+		Element spacer = Document.get().createDivElement();
+		spacer.setClassName(CLASSNAME + "-spacer");
+		return spacer;
+	}
+
+	@Override
+	public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+		super.updateFromUIDL(uidl, client);
+
+		if (!uidl.hasAttribute("vtotal")) {
+			// Cached or invisible
+			return;
+		}
+
+		addStyleName(CLASSNAME);
+
+		first = uidl.getIntAttribute("vfirst");
+		total = uidl.getIntAttribute("vtotal");
+		itemSize = uidl.getIntAttribute("vitemsize");
+		buffer = uidl.getIntAttribute("vbuffer");
+		requestPending = false;
+
+		updateSpacers();
+
+		// The viewport may already be outside the received window
+		scrollTimer.schedule(1);
+	}
+
+	@Override
+	protected Element getEndAnchor() {
+		// Keep the trailing spacer after the cells
+		return trailingSpacer;
+	}
+
+	private void updateSpacers() {
+		int before = first * itemSize;
+		int after = Math.max(0, total - first - getWidgetCount()) * itemSize;
+		if (isVertical()) {
+			leadingSpacer.getStyle().setPropertyPx("height", before);
+			trailingSpacer.getStyle().setPropertyPx("height", after);
+		} else {
+			leadingSpacer.getStyle().setPropertyPx("width", before);
+			trailingSpacer.getStyle().setPropertyPx("width", after);
+		}
+	}
+
+	/**
+	 * Sends the visible range to the server if the viewport is getting close
+	 * to the edge of the rendered window.
+	 */
+	private void checkVisibleRange() {
+		if (requestPending || client == null || itemSize <= 0) {
+			return;
+		}
+		final Element e = getElement();
+		int position = isVertical() ? e.getScrollTop() : e.getScrollLeft();
+		int viewport = isVertical() ? e.getClientHeight() : e
+				.getClientWidth();
+		int visibleFirst = position / itemSize;
+		int visibleLast = Math.min(total - 1, (position + viewport) / itemSize);
+
+		int rendered = getWidgetCount();
+		int margin = buffer / 2;
+		boolean needsBefore = first > 0 && visibleFirst < first + margin;
+		boolean needsAfter = first + rendered < total
+				&& visibleLast >= first + rendered - margin;
+		if (needsBefore || needsAfter) {
+			requestPending = true;
+			client.updateVariable(paintableId, "first", visibleFirst, false);
+			client.updateVariable(paintableId, "last", visibleLast, true);
+		}
+	}
+}
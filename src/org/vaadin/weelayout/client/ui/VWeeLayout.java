@@ -1,30 +1,38 @@
 package org.vaadin.weelayout.client.ui;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 
 import org.vaadin.csstools.client.ComputedStyle;
+import org.vaadin.weelayout.client.ui.WeeLayoutStats.Operation;
 
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
 import com.google.gwt.dom.client.Document;
 import com.google.gwt.dom.client.Element;
 import com.google.gwt.dom.client.Style.Overflow;
 import com.google.gwt.event.dom.client.DomEvent.Type;
 import com.google.gwt.event.shared.EventHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
-import com.google.gwt.user.client.DOM;
-import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.Event.NativePreviewEvent;
+import com.google.gwt.user.client.Event.NativePreviewHandler;
 import com.google.gwt.user.client.ui.ComplexPanel;
-import com.google.gwt.user.client.ui.HasWidgets;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.terminal.gwt.client.ApplicationConnection;
 import com.vaadin.terminal.gwt.client.Container;
 import com.vaadin.terminal.gwt.client.EventId;
 import com.vaadin.terminal.gwt.client.Paintable;
+import com.vaadin.terminal.gwt.client.RenderInformation.FloatSize;
 import com.vaadin.terminal.gwt.client.RenderSpace;
 import com.vaadin.terminal.gwt.client.UIDL;
 import com.vaadin.terminal.gwt.client.Util;
 import com.vaadin.terminal.gwt.client.VConsole;
 import com.vaadin.terminal.gwt.client.ValueMap;
+import com.vaadin.terminal.gwt.client.ui.AlignmentInfo;
 import com.vaadin.terminal.gwt.client.ui.LayoutClickEventHandler;
 
 public class VWeeLayout extends ComplexPanel implements Container {
@@ -68,6 +76,45 @@ public class VWeeLayout extends ComplexPanel implements Container {
 	/** Should the layout calculate relative sizes inside undefined sized layout */
 	private boolean smart = false;
 
+	/**
+	 * Size hint for the cells without their own, -1 if none
+	 */
+	private int defaultSizeHint = -1;
+
+	/**
+	 * Has the server promised that the size of the layout never depends on
+	 * its children, so that child size changes are never passed to the parent
+	 */
+	private boolean boundary = false;
+
+	/**
+	 * Is the layout rendered as a flexbox, with the browser distributing the
+	 * space between the cells
+	 */
+	private boolean flex = false;
+
+	/**
+	 * Are the cells positioned absolutely, from offsets calculated by the
+	 * layout
+	 */
+	private boolean absolute = false;
+
+	/**
+	 * Cells of an absolutely positioned layout whose size may have changed
+	 * since they were last measured
+	 */
+	private final HashSet<Cell> dirtyCells = new HashSet<Cell>();
+
+	/*
+	 * Size of the contents of an absolutely positioned layout, last written
+	 * to the layout element when its own size is undefined, -1 if none
+	 */
+	private int absoluteContentSize = -1;
+	private int absoluteContentCrossSize = -1;
+
+	/** Cached margin, border and padding of the layout element */
+	private final BoxMetrics layoutMetrics = new BoxMetrics();
+
 	/** Current margin values */
 	protected int[] margin;
 
@@ -93,24 +140,146 @@ public class VWeeLayout extends ComplexPanel implements Container {
 
 	// Information to use after all fixed size widgets are rendered
 	private int usedSpace = 0;
+
+	/**
+	 * Is usedSpace the sum of the measured required sizes of the current
+	 * cells, so that it can be updated with the changes of single cells
+	 */
+	private boolean usedSpaceValid = false;
 	private final ArrayList<Cell> relativeSizedWidgets = new ArrayList<Cell>();
 
+	/**
+	 * Cells whose space was allocated during rendering without measuring
+	 * them. They get the final allocation after the measure phase.
+	 */
+	private final ArrayList<Cell> estimatedAllocations = new ArrayList<Cell>();
+
+	/** Has the DOM been modified since the last measurement */
+	private boolean domModified = true;
+
+	/** Forced layouts (DOM reads after DOM writes) during the current update */
+	private int forcedReflows = 0;
+
+	/** Forced layouts during the latest updateFromUIDL */
+	private int lastUpdateForcedReflows = 0;
+
+	/** Existing cells moved in the DOM during the current update */
+	private int domMoves = 0;
+
+	/** Existing cells moved in the DOM during the latest updateFromUIDL */
+	private int lastUpdateDomMoves = 0;
+
+	/**
+	 * Time budget per frame in milliseconds for progressive rendering, 0 if
+	 * the child widgets are updated synchronously
+	 */
+	private int progressiveBudget = 0;
+
+	/** Child widget updates waiting for progressive rendering */
+	private final ArrayList<Cell> pendingCells = new ArrayList<Cell>();
+	private final ArrayList<UIDL> pendingUIDLs = new ArrayList<UIDL>();
+	private int pendingPosition = 0;
+
+	/**
+	 * The queued UIDL of each cell waiting for progressive rendering. A cell
+	 * that is updated directly or removed in the meantime is taken out, and
+	 * its queued update is skipped.
+	 */
+	private final HashMap<Cell, UIDL> pendingUIDLByCell = new HashMap<Cell, UIDL>();
+
+	/** The command continuing the progressive render, null if none */
+	private RepeatingCommand progressiveRender;
+
+	/** The layouts with a progressive render going on */
+	private static final ArrayList<VWeeLayout> progressiveRenders = new ArrayList<VWeeLayout>();
+
+	private HandlerRegistration userInputPreview;
+
+	private static final int USER_INPUT_EVENTS = Event.ONMOUSEDOWN
+			| Event.ONKEYDOWN | Event.ONCLICK;
+
+	/** Does the current update contain only the changes */
+	private boolean deltaUpdate = false;
+
+	/** The cells of the child widgets, kept in sync with getChildren() */
+	private final HashMap<Widget, Cell> widgetToCell = new HashMap<Widget, Cell>();
+
+	/** Performance statistics, null unless compiled in */
+	private final WeeLayoutStats stats = WeeLayoutStats.isEnabled() ? new WeeLayoutStats(
+			this) : null;
+
 	public VWeeLayout() {
 		setElement(Document.get().createDivElement());
 		setStyleName(CLASSNAME);
 	}
 
+	@Override
+	protected void onLoad() {
+		super.onLoad();
+		if (WeeLayoutStats.isEnabled()) {
+			stats.register();
+		}
+	}
+
+	@Override
+	protected void onUnload() {
+		super.onUnload();
+		if (WeeLayoutStats.isEnabled()) {
+			stats.unregister();
+		}
+		// The children may be unregistered, don't update them any more
+		cancelProgressiveRender();
+	}
+
+	/**
+	 * @return the performance statistics of this layout, or <code>null</code>
+	 *         if they are not compiled in
+	 * @see WeeLayoutStats#isEnabled()
+	 */
+	public WeeLayoutStats getStats() {
+		return stats;
+	}
+
 	/**
 	 * Called whenever an update is received from the server
 	 */
 	public void updateFromUIDL(UIDL uidl, ApplicationConnection client) {
+		if (WeeLayoutStats.isEnabled()) {
+			final double start = stats.start();
+			doUpdateFromUIDL(uidl, client);
+			stats.end(Operation.UPDATE_FROM_UIDL, start);
+		} else {
+			doUpdateFromUIDL(uidl, client);
+		}
+	}
+
+	private void doUpdateFromUIDL(UIDL uidl, ApplicationConnection client) {
+		// Previous progressive renders must be complete before this response
+		// goes further
+		finishProgressiveRenders();
+
 		isRendering = true;
-		getElement().getStyle().setOverflow(Overflow.HIDDEN);
+		forcedReflows = 0;
+		domMoves = 0;
+
+		/*
+		 * The update is done in phases: DOM reads are grouped together and
+		 * never interleaved with DOM writes, so that the browser needs to
+		 * calculate the layout a constant number of times per update instead
+		 * of once per child.
+		 */
 
+		// Read: box metrics needed by setWidth/setHeight
 		updateExtraSizeInfo();
 
+		// Write: own attributes and size
+		getElement().getStyle().setOverflow(Overflow.HIDDEN);
+		domModified();
+
 		if (client.updateComponent(this, uidl, true)) {
 			isRendering = false;
+			lastUpdateForcedReflows = forcedReflows;
+			lastUpdateDomMoves = domMoves;
 			return;
 		}
 
@@ -121,6 +290,7 @@ public class VWeeLayout extends ComplexPanel implements Container {
 		vertical = uidl.hasAttribute("vertical");
 		clip = uidl.hasAttribute("clip");
 		smart = uidl.hasAttribute("smart");
+		boundary = uidl.hasAttribute("boundary");
 
 		if (vertical) {
 			addStyleDependentName("vertical");
@@ -130,237 +300,1002 @@ public class VWeeLayout extends ComplexPanel implements Container {
 			removeStyleDependentName("vertical");
 		}
 
+		final String mode = uidl.hasAttribute("mode") ? uidl
+				.getStringAttribute("mode") : "inline";
+		setRenderMode("flex".equals(mode), "absolute".equals(mode));
+
 		updateDynamicSizeInfo(uidl);
 
+		// Read: the available space for the children
 		updateActualSize();
 
+		// Write: children
+
 		// Vertical-align needs one element to base the alignment onto
 		// This is done only once, before any components are painted
-		if (!vertical && horizontalAligner == null) {
+		if (!vertical && !flex && !absolute && horizontalAligner == null) {
 			horizontalAligner = Document.get().createSpanElement();
 			horizontalAligner.setClassName(CLASSNAME + "-aligner");
-			getElement().appendChild(horizontalAligner);
+			getElement().insertFirst(horizontalAligner);
+		} else if ((flex || absolute) && horizontalAligner != null) {
+			// Flexbox and absolute positioning align the cells without it
+			horizontalAligner.removeFromParent();
+			horizontalAligner = null;
 		}
 
-		// Iterate through Paintables in UIDL, add new ones and remove any
-		// old ones.
-		final int uidlCount = uidl.getChildCount();
-		int uidlPos = 0;
+		relativeSizedWidgets.clear();
 
-		// Additional info that needs to be passed to components
-		final ValueMap alignments = uidl.getMapAttribute("alignments");
+		progressiveBudget = uidl.hasAttribute("progressive") ? uidl
+				.getIntAttribute("progressive") : 0;
 
-		relativeSizedWidgets.clear();
+		deltaUpdate = uidl.hasAttribute("delta");
+		if (deltaUpdate) {
+			// Only the changes since the previous update are sent
+			applyOperations(uidl);
+		} else {
+			updateChildren(uidl);
+		}
+		updateSizeHints(uidl);
 
-		for (; uidlPos < uidlCount; uidlPos++) {
+		if (hasPendingChildUpdates()) {
+			// Render the first cells now and the rest in later frames
+			if (renderPendingChunk()) {
+				startProgressiveRender();
+			}
+		} else {
+			finishUpdate();
+		}
+	}
 
-			final UIDL childUIDL = (uidlPos < uidlCount) ? uidl
-					.getChildUIDL(uidlPos) : null;
+	/**
+	 * The last phases of an update, after all child widgets have been
+	 * updated: measuring the cells and sizing the relative sized children.
+	 */
+	private void finishUpdate() {
+		if (deltaUpdate) {
+			// Only some of the cells were updated
+			relativeSizedWidgets.clear();
+			if (calculatesRelativeSizes()) {
+				for (Widget w : getChildren()) {
+					Cell cell = (Cell) w;
+					if (cell.hasRelativeSizeInParentDirection()) {
+						relativeSizedWidgets.add(cell);
+					}
+				}
+			}
+		}
 
-			final Widget uidlWidget = childUIDL != null ? (Widget) client
-					.getPaintable(childUIDL) : null;
+		// Don't keep track of size for undefined sized layout and don't
+		// calculate expansions
+		final boolean calculate = calculatesRelativeSizes();
+		if (calculate && smart) {
+			clearComponentSizesInNonParentDirection();
+		}
 
-			final Cell cell = getCellForWidget(uidlWidget, true);
+		// Read: all cell measurements
+		if (calculate) {
+			updateActualSize();
+			measureCells();
+		} else if (!estimatedAllocations.isEmpty()) {
+			beforeDomRead();
+			for (Cell cell : estimatedAllocations) {
+				measureCell(cell);
+			}
+		}
 
-			if (cell.getParent() == null || getChildren().get(uidlPos) != cell) {
-				/*
-				 * Widget is either new or has changed place
-				 */
-				cell.removeFromParent();
+		// Write: final sizes of the relative sized children, nested layouts
+		// are laid out after this layout
+		isRendering = false;
+		final boolean coordinating = LayoutCoordinator.begin(this);
+		try {
+			for (Cell cell : estimatedAllocations) {
+				if (cell.getParent() == this) {
+					handleRelativeSize(cell);
+				}
+			}
+			estimatedAllocations.clear();
+			if (calculate) {
+				updateRelativeSizedWidgets();
+			}
+			if (absolute) {
+				positionCells();
+			}
+		} finally {
+			if (coordinating) {
+				LayoutCoordinator.end();
+			}
+		}
 
-				// Logical attach
-				getChildren().insert(cell, uidlPos);
+		if (!clip) {
+			getElement().getStyle().clearOverflow();
+		}
+		domModified();
+		lastUpdateForcedReflows = forcedReflows;
+		lastUpdateDomMoves = domMoves;
+	}
 
-				// Physical attach
-				DOM.insertChild(getElement(), cell.getElement(),
-						vertical ? uidlPos * 2 : uidlPos + 1);
+	/**
+	 * Switches between the inline, flexbox and absolute render modes.
+	 */
+	private void setRenderMode(boolean newFlex, boolean newAbsolute) {
+		if (newFlex != flex || newAbsolute != absolute) {
+			usedSpaceValid = false;
+		}
+		if (newFlex != flex) {
+			flex = newFlex;
+			if (flex) {
+				addStyleDependentName("flex");
+			} else {
+				removeStyleDependentName("flex");
+			}
+			for (Widget w : getChildren()) {
+				((Cell) w).setFlex(flex);
+			}
+		}
+		if (newAbsolute != absolute) {
+			absolute = newAbsolute;
+			if (absolute) {
+				addStyleDependentName("absolute");
+			} else {
+				removeStyleDependentName("absolute");
+				dirtyCells.clear();
+				// Let the contents define the size again
+				if (absoluteContentSize >= 0) {
+					getElement().getStyle().clearProperty(
+							vertical ? "height" : "width");
+				}
+				if (absoluteContentCrossSize >= 0) {
+					getElement().getStyle().clearProperty(
+							vertical ? "width" : "height");
+				}
+				absoluteContentSize = -1;
+				absoluteContentCrossSize = -1;
+			}
+			for (Widget w : getChildren()) {
+				Cell cell = (Cell) w;
+				cell.setAbsolute(absolute);
+				markDirty(cell);
+			}
+		}
+	}
+
+	/**
+	 * Marks the size of the cell as possibly changed, so that it is measured
+	 * before the cells are positioned. Only used in absolute mode.
+	 */
+	private void markDirty(Cell cell) {
+		if (absolute) {
+			dirtyCells.add(cell);
+		}
+	}
+
+	/**
+	 * Measures the cells whose size may have changed. Only reads the DOM.
+	 */
+	private void measureDirtyCells() {
+		if (dirtyCells.isEmpty()) {
+			return;
+		}
+		beforeDomRead();
+		for (Cell cell : dirtyCells) {
+			if (cell.getParent() == this) {
+				measureCell(cell);
+			}
+		}
+		dirtyCells.clear();
+	}
+
+	/**
+	 * Positions the cells in absolute mode. Only the cells whose size may
+	 * have changed are measured. The offsets of all cells are then calculated
+	 * from the cached sizes and alignments without touching the DOM, and only
+	 * the cells whose offset changed, i.e. the ones after a resized, inserted
+	 * or removed cell, are moved.
+	 * 
+	 * @return <code>true</code> if the size of an undefined sized layout
+	 *         changed
+	 */
+	private boolean positionCells() {
+		// Read
+		measureDirtyCells();
+
+		// Write
+		final boolean undefinedSize = vertical ? undefHeight : undefWidth;
+		final boolean undefinedCrossSize = vertical ? undefWidth : undefHeight;
+		int crossSpace = vertical ? width : height;
+		if (undefinedCrossSize) {
+			crossSpace = 0;
+			for (Widget w : getChildren()) {
+				crossSpace = Math.max(crossSpace,
+						((Cell) w).getAbsoluteCrossSize());
+			}
+		}
+		final int start = vertical ? padding[0] : padding[3];
+		final int crossStart = vertical ? padding[3] : padding[0];
+		int offset = start;
+		for (Widget w : getChildren()) {
+			final Cell cell = (Cell) w;
+			final int free = Math.max(0,
+					crossSpace - cell.getAbsoluteCrossSize());
+			final AlignmentInfo alignment = cell.getAlignment();
+			int crossOffset;
+			if (vertical) {
+				crossOffset = alignment.isLeft() ? 0
+						: alignment.isRight() ? free : free / 2;
+			} else {
+				crossOffset = alignment.isBottom() ? free : alignment
+						.isVerticalCenter() ? free / 2 : 0;
+			}
+			cell.setAbsolutePosition(offset, crossStart + crossOffset);
+			offset += cell.getAbsoluteSize();
+		}
+
+		// Absolutely positioned cells don't give an undefined sized layout
+		// any size, so it is set here
+		boolean resized = false;
+		if (undefinedSize && offset - start != absoluteContentSize) {
+			absoluteContentSize = offset - start;
+			getElement().getStyle().setPropertyPx(
+					vertical ? "height" : "width", absoluteContentSize);
+			resized = true;
+		}
+		if (undefinedCrossSize && crossSpace != absoluteContentCrossSize) {
+			absoluteContentCrossSize = crossSpace;
+			getElement().getStyle().setPropertyPx(
+					vertical ? "width" : "height", absoluteContentCrossSize);
+			resized = true;
+		}
+		domModified();
+		return resized;
+	}
+
+	/**
+	 * Marks the DOM as modified, so that the next read forces the browser to
+	 * calculate the layout.
+	 */
+	private void domModified() {
+		domModified = true;
+	}
+
+	/**
+	 * Called before reading sizes from the DOM. Counts a forced layout if the
+	 * DOM has been modified since the last read.
+	 */
+	private void beforeDomRead() {
+		if (domModified) {
+			forcedReflows++;
+			domModified = false;
+			if (WeeLayoutStats.isEnabled()) {
+				stats.forcedReflow();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of times the browser was forced to calculate the
+	 * layout synchronously (a DOM read after a DOM write) during the latest
+	 * update from the server. Only the reads and writes done by this layout
+	 * are counted, not the ones done by the child widgets.
+	 * 
+	 * @return the number of forced layouts
+	 */
+	public int getForcedReflowCount() {
+		return lastUpdateForcedReflows;
+	}
+
+	/**
+	 * Returns the number of existing cells that were moved to a new place in
+	 * the DOM during the latest update from the server. New and removed cells
+	 * are not counted.
+	 * 
+	 * @return the number of moved cells
+	 */
+	public int getDomMoveCount() {
+		return lastUpdateDomMoves;
+	}
+
+	/**
+	 * Iterate through Paintables in UIDL, add new ones and remove any old ones.
+	 * <p>
+	 * The cells are matched to the UIDL by their widgets, i.e. by paintable
+	 * id. Of the cells that are kept, the ones forming the longest increasing
+	 * subsequence of old positions stay in place, and only the rest are moved
+	 * in the DOM. Inserting one component at the beginning then touches only
+	 * the new cell.
+	 */
+	private void updateChildren(UIDL uidl) {
+		final int uidlCount = uidl.getChildCount();
+
+		// Alignments and relative sizes of the children by position, see
+		// PackedLayoutInfo
+		final int[] layoutInfo = PackedLayoutInfo.decode(uidl
+				.getStringAttribute("layout"));
+
+		final UIDL[] childUIDLs = new UIDL[uidlCount];
+		final Cell[] cells = new Cell[uidlCount];
+		final HashMap<Cell, Integer> newPositions = new HashMap<Cell, Integer>();
+		for (int i = 0; i < uidlCount; i++) {
+			childUIDLs[i] = uidl.getChildUIDL(i);
+			cells[i] = getCellForWidget(
+					(Widget) client.getPaintable(childUIDLs[i]), true);
+			newPositions.put(cells[i], i);
+		}
+
+		// Remove the cells that are no longer in the UIDL
+		for (int i = getChildren().size() - 1; i >= 0; i--) {
+			final Cell cell = (Cell) getChildren().get(i);
+			if (!newPositions.containsKey(cell)) {
+				remove(cell);
+				if (cell.getChildWidget().getParent() == cell) {
+					client.unregisterPaintable((Paintable) cell
+							.getChildWidget());
+				}
+			}
+		}
+
+		// Old positions in the new order
+		final HashMap<Cell, Integer> oldPositions = new HashMap<Cell, Integer>();
+		for (int i = 0; i < getChildren().size(); i++) {
+			oldPositions.put((Cell) getChildren().get(i), i);
+		}
+		final int[] oldPositionsInNewOrder = new int[uidlCount];
+		for (int i = 0; i < uidlCount; i++) {
+			Integer old = oldPositions.get(cells[i]);
+			oldPositionsInNewOrder[i] = old == null ? -1 : old;
+		}
+		final boolean[] stays = LongestIncreasingSubsequence
+				.find(oldPositionsInNewOrder);
+
+		// Physical order, from the end so that the next cell is in place
+		Element before = getEndAnchor();
+		for (int i = uidlCount - 1; i >= 0; i--) {
+			final Cell cell = cells[i];
+			if (cell.getParent() != this) {
+				getElement().insertBefore(cell.getElement(), before);
+			} else if (!stays[i]) {
+				cell.moveBefore(getElement(), before);
+				cellMoved();
+			}
+			before = cell.getElement();
+		}
 
-				// Adopt.
+		// Logical order
+		for (int i = 0; i < uidlCount; i++) {
+			final Cell cell = cells[i];
+			if (i < getChildren().size() && getChildren().get(i) == cell) {
+				continue;
+			}
+			if (cell.getParent() == this) {
+				getChildren().remove(cell);
+				getChildren().insert(cell, i);
+			} else {
+				getChildren().insert(cell, i);
+				widgetToCell.put(cell.getChildWidget(), cell);
 				adopt(cell);
 			}
+		}
+		domModified();
+
+		final boolean calculate = calculatesRelativeSizes();
+		int info = 0;
+		for (int i = 0; i < uidlCount; i++) {
+			final Cell cell = cells[i];
+			final int flags = layoutInfo[info++];
+			final int alignment = flags >> PackedLayoutInfo.ALIGNMENT_SHIFT;
+			if (alignment != 0) {
+				cell.setAlignment(alignment);
+			}
+			float relativeWidth = -1;
+			if ((flags & PackedLayoutInfo.FULL_WIDTH) != 0) {
+				relativeWidth = 100;
+			} else if ((flags & PackedLayoutInfo.RELATIVE_WIDTH) != 0) {
+				relativeWidth = (float) layoutInfo[info++]
+						/ PackedLayoutInfo.RELATIVE_SIZE_SCALE;
+			}
+			float relativeHeight = -1;
+			if ((flags & PackedLayoutInfo.FULL_HEIGHT) != 0) {
+				relativeHeight = 100;
+			} else if ((flags & PackedLayoutInfo.RELATIVE_HEIGHT) != 0) {
+				relativeHeight = (float) layoutInfo[info++]
+						/ PackedLayoutInfo.RELATIVE_SIZE_SCALE;
+			}
+			if (calculate) {
+				cell.updateRelativeSize(new FloatSize(relativeWidth,
+						relativeHeight));
+			}
+
+			updateCell(cell, childUIDLs[i]);
+		}
+	}
 
-			if (alignments.containsKey(childUIDL.getId())) {
-				cell.setAlignment(alignments.getInt(childUIDL.getId()));
+	/**
+	 * Gives the cells the size hints sent by the server. Delta updates only
+	 * contain the hints when they have changed.
+	 */
+	private void updateSizeHints(UIDL uidl) {
+		final int hint = uidl.hasAttribute("hint") ? uidl
+				.getIntAttribute("hint") : -1;
+		if (hint != defaultSizeHint) {
+			defaultSizeHint = hint;
+			usedSpaceValid = false;
+		}
+		if (uidl.hasAttribute("hints") || !deltaUpdate) {
+			final ValueMap hints = uidl.hasAttribute("hints") ? uidl
+					.getMapAttribute("hints") : null;
+			for (Widget w : getChildren()) {
+				final Cell cell = (Cell) w;
+				final String id = client.getPid(cell.getChildWidget()
+						.getElement());
+				cell.setSizeHint(hints != null && hints.containsKey(id) ? hints
+						.getInt(id) : -1);
 			}
+			usedSpaceValid = false;
+		}
+	}
 
+	/**
+	 * Applies the structural operations (insert, remove, move, align) sent by
+	 * the server to the existing cells, in order.
+	 */
+	private void applyOperations(UIDL uidl) {
+		final ArrayList<Cell> removedCells = new ArrayList<Cell>();
+		final int count = uidl.getChildCount();
+		for (int i = 0; i < count; i++) {
+			final UIDL op = uidl.getChildUIDL(i);
+			final String type = op.getTag();
+			final int index = op.getIntAttribute("index");
+			if ("insert".equals(type)) {
+				final UIDL childUIDL = op.getChildUIDL(0);
+				final Cell cell = getCellForWidget(
+						(Widget) client.getPaintable(childUIDL), true);
+				cell.removeFromParent();
+				insertCell(cell, index);
+				updateCell(cell, childUIDL);
+			} else if ("remove".equals(type)) {
+				final Cell cell = (Cell) getChildren().get(index);
+				remove(cell);
+				removedCells.add(cell);
+			} else if ("move".equals(type)) {
+				moveCell((Cell) getChildren().get(index),
+						op.getIntAttribute("to"));
+			} else if ("align".equals(type)) {
+				((Cell) getChildren().get(index)).setAlignment(op
+						.getIntAttribute("align"));
+				usedSpaceValid = false;
+			}
+		}
+		for (Cell cell : removedCells) {
+			// Unless the widget was inserted back into a new cell
+			if (cell.getParent() == null
+					&& cell.getChildWidget().getParent() == cell) {
+				client.unregisterPaintable((Paintable) cell.getChildWidget());
+			}
+		}
+	}
+
+	/**
+	 * Inserts a cell into the given position, both logically and physically.
+	 */
+	private void insertCell(Cell cell, int index) {
+		final Element before = getCellElementAt(index);
+
+		// Logical attach
+		getChildren().insert(cell, index);
+		widgetToCell.put(cell.getChildWidget(), cell);
+		usedSpaceValid = false;
+
+		// Physical attach
+		getElement().insertBefore(cell.getElement(), before);
+
+		// Adopt.
+		adopt(cell);
+		domModified();
+	}
+
+	/**
+	 * Moves an existing cell into a new position without detaching it.
+	 * 
+	 * @param cell
+	 *            the cell to move
+	 * @param index
+	 *            the new position, counted after the cell has been taken out
+	 *            of its current position
+	 */
+	private void moveCell(Cell cell, int index) {
+		getChildren().remove(cell);
+		final Element before = getCellElementAt(index);
+		getChildren().insert(cell, index);
+		cell.moveBefore(getElement(), before);
+		cellMoved();
+		domModified();
+	}
+
+	private void cellMoved() {
+		domMoves++;
+		if (WeeLayoutStats.isEnabled()) {
+			stats.cellMoved();
+		}
+	}
+
+	/**
+	 * @return the element of the cell currently at the given position, or the
+	 *         end anchor if the position is after the last cell
+	 */
+	private Element getCellElementAt(int index) {
+		return index < getChildren().size() ? getChildren().get(index)
+				.getElement() : getEndAnchor();
+	}
+
+	/**
+	 * Returns the element before which cells are appended, or
+	 * <code>null</code> if they are appended at the end of the layout element.
+	 * Subclasses can override this to keep their own elements after the
+	 * cells.
+	 * 
+	 * @return the element following the last cell, or <code>null</code>
+	 */
+	protected Element getEndAnchor() {
+		return null;
+	}
+
+	/**
+	 * @return <code>true</code> if the child components flow vertically
+	 */
+	protected boolean isVertical() {
+		return vertical;
+	}
+
+	/**
+	 * Updates the child widget of the cell and the relative size information
+	 * of the cell.
+	 */
+	private void updateCell(Cell cell, UIDL childUIDL) {
+		if (progressiveBudget > 0 && !childUIDL.hasAttribute("cached")) {
+			pendingCells.add(cell);
+			pendingUIDLs.add(childUIDL);
+			pendingUIDLByCell.put(cell, childUIDL);
+			return;
+		}
+		updateCellNow(cell, childUIDL);
+	}
+
+	private void updateCellNow(Cell cell, UIDL childUIDL) {
+		if (!childUIDL.hasAttribute("cached")) {
 			((Paintable) cell.getChildWidget()).updateFromUIDL(childUIDL,
 					client);
-
-			// Only when size is specified, we calculate cell dimensions (for
-			// expansions)
-			if (smart
-					|| ((vertical && !undefHeight) || (!vertical && !undefWidth))) {
+			domModified();
+			usedSpaceValid = false;
+			markDirty(cell);
+		}
+		// Otherwise the child has not changed and only a reference to it was
+		// painted, its previous measurements are still valid
+
+		// Only when size is specified, we calculate cell dimensions (for
+		// expansions)
+		final boolean calculate = calculatesRelativeSizes();
+		if (calculate) {
+			if (deltaUpdate) {
+				// Complete updates carry the relative sizes in the layout
+				// attribute
 				cell.updateRelativeSize(childUIDL);
-				if (cell.hasRelativeSizeInParentDirection()) {
-					relativeSizedWidgets.add(cell);
-				}
 			}
+			if (cell.hasRelativeSizeInParentDirection()) {
+				relativeSizedWidgets.add(cell);
+			}
+		}
+		cell.updateFlex(calculate);
+	}
 
-		} // All UIDL widgets painted
-
-		// All remaining widgets are removed
-		removeChildrenAfter(uidlPos);
+	private boolean hasPendingChildUpdates() {
+		return pendingPosition < pendingCells.size();
+	}
 
-		// Don't keep track of size for undefined sized layout and don't
-		// calculate expansions
-		if (smart || ((vertical && !undefHeight) || (!vertical && !undefWidth))) {
-			if (smart) {
-				clearComponentSizesInNonParentDirection();
+	/**
+	 * Updates pending child widgets in order until the time budget for one
+	 * frame is used. Finishes the update after the last child.
+	 * 
+	 * @return <code>true</code> if there are child updates left
+	 */
+	private boolean renderPendingChunk() {
+		final Duration duration = new Duration();
+		while (hasPendingChildUpdates()) {
+			final Cell cell = pendingCells.get(pendingPosition);
+			final UIDL childUIDL = pendingUIDLs.get(pendingPosition);
+			pendingPosition++;
+			if (cell.getParent() == this
+					&& pendingUIDLByCell.get(cell) == childUIDL) {
+				pendingUIDLByCell.remove(cell);
+				updateCellNow(cell, childUIDL);
 			}
-			updateActualSize();
-			updateUsedSpace();
-			updateRelativeSizedWidgets();
+			if (duration.elapsedMillis() >= progressiveBudget) {
+				break;
+			}
+		}
+		if (hasPendingChildUpdates()) {
+			return true;
 		}
+		pendingCells.clear();
+		pendingUIDLs.clear();
+		pendingUIDLByCell.clear();
+		pendingPosition = 0;
+		progressiveRenders.remove(this);
+		finishUpdate();
+		return false;
+	}
 
+	/**
+	 * Continues updating the pending child widgets in later frames.
+	 */
+	private void startProgressiveRender() {
+		if (!progressiveRenders.contains(this)) {
+			progressiveRenders.add(this);
+		}
+		if (userInputPreview == null) {
+			/*
+			 * Any user input may cause a request to the server, and the
+			 * response may refer to the children not yet rendered. Complete
+			 * the render before handling the input.
+			 */
+			userInputPreview = Event
+					.addNativePreviewHandler(new NativePreviewHandler() {
+						public void onPreviewNativeEvent(
+								NativePreviewEvent event) {
+							if ((event.getTypeInt() & USER_INPUT_EVENTS) != 0) {
+								finishProgressiveRender();
+							}
+						}
+					});
+		}
+		if (progressiveRender == null) {
+			progressiveRender = new RepeatingCommand() {
+				public boolean execute() {
+					if (progressiveRender != this) {
+						// Finished synchronously or cancelled in the meantime
+						return false;
+					}
+					if (client.hasActiveRequest()) {
+						// The response must not overtake the queued updates
+						finishProgressiveRenders();
+						return false;
+					}
+					if (renderPendingChunk()) {
+						return true;
+					}
+					progressiveRender = null;
+					removeUserInputPreview();
+					// Our size may have changed after the framework's layout
+					Util.notifyParentOfSizeChange(VWeeLayout.this, false);
+					return false;
+				}
+			};
+			Scheduler.get().scheduleIncremental(progressiveRender);
+		}
+	}
+
+	/**
+	 * Synchronously updates all child widgets still waiting for a progressive
+	 * render, and finishes the update. Does nothing if there is no progressive
+	 * render going on.
+	 */
+	private void finishProgressiveRender() {
+		progressiveRender = null;
+		if (!hasPendingChildUpdates()) {
+			return;
+		}
+		progressiveBudget = Integer.MAX_VALUE;
+		renderPendingChunk();
+		removeUserInputPreview();
+		// Our size may have changed after the framework's layout phase
+		Util.notifyParentOfSizeChange(this, false);
+	}
+
+	/**
+	 * Synchronously finishes the progressive renders of all layouts. Called
+	 * when a response from the server starts to be handled, so that a queued
+	 * child update is never applied after a newer one.
+	 */
+	private static void finishProgressiveRenders() {
+		if (progressiveRenders.isEmpty()) {
+			return;
+		}
+		for (VWeeLayout layout : new ArrayList<VWeeLayout>(progressiveRenders)) {
+			layout.finishProgressiveRender();
+		}
+	}
+
+	/**
+	 * Drops the child widget updates still waiting for a progressive render
+	 * without doing them.
+	 */
+	private void cancelProgressiveRender() {
+		progressiveRender = null;
+		if (!hasPendingChildUpdates()) {
+			return;
+		}
+		pendingCells.clear();
+		pendingUIDLs.clear();
+		pendingUIDLByCell.clear();
+		pendingPosition = 0;
+		progressiveRenders.remove(this);
+		removeUserInputPreview();
 		isRendering = false;
-		if (!clip) {
-			getElement().getStyle().clearOverflow();
+	}
+
+	/**
+	 * Drops the queued update of a child that is being updated directly by a
+	 * newer response. The rest of the response may update other queued
+	 * children, so all progressive renders are finished.
+	 */
+	private void dropStaleUpdate(Cell cell, UIDL uidl) {
+		pendingUIDLByCell.remove(cell);
+		final boolean calculate = calculatesRelativeSizes();
+		if (calculate) {
+			cell.updateRelativeSize(uidl);
+			if (cell.hasRelativeSizeInParentDirection()
+					&& !relativeSizedWidgets.contains(cell)) {
+				relativeSizedWidgets.add(cell);
+			}
 		}
+		cell.updateFlex(calculate);
+		finishProgressiveRenders();
+	}
+
+	private void removeUserInputPreview() {
+		if (userInputPreview != null) {
+			userInputPreview.removeHandler();
+			userInputPreview = null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the layout size is defined in the layout
+	 *         direction or smart relative sizes are used, i.e. relative sizes
+	 *         need to be calculated.
+	 */
+	private boolean calculatesRelativeSizes() {
+		return smart || ((vertical && !undefHeight) || (!vertical && !undefWidth));
 	}
 
 	protected void updateExtraSizeInfo() {
-		ComputedStyle cs = new ComputedStyle(getElement());
-		margin = cs.getMargin();
-		border = cs.getBorder();
-		padding = cs.getPadding();
+		final String theme = getTheme();
+		if (layoutMetrics.isStale(getElement(), theme)) {
+			beforeDomRead();
+		}
+		layoutMetrics.update(getElement(), theme);
+		margin = layoutMetrics.getMargin();
+		border = layoutMetrics.getBorder();
+		padding = layoutMetrics.getPadding();
+	}
+
+	/**
+	 * @return the URI of the current theme, part of the box metrics cache
+	 *         keys
+	 */
+	private String getTheme() {
+		return client == null ? null : client.getThemeUri();
 	}
 
 	public void updateActualSize() {
+		beforeDomRead();
+		if (WeeLayoutStats.isEnabled()) {
+			stats.measured();
+		}
 		ComputedStyle cs = new ComputedStyle(getElement());
 		width = cs.getIntProperty("width");
 		height = cs.getIntProperty("height");
 	}
 
-	private int cumulativeSize = 0;
-
+	/**
+	 * Gives the relative sized widgets their sizes. The remaining space is
+	 * distributed in whole pixels so that the widgets fill it exactly,
+	 * without rounding gaps. getAllocatedSpace then reports a space from
+	 * which ApplicationConnection calculates exactly the allocated size.
+	 * <p>
+	 * Only uses sizes measured during the preceding measure phase, so the
+	 * sizes are final within the same pass.
+	 */
 	private void updateRelativeSizedWidgets() {
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
 		// TODO handle Firefox sub-pixel errors somehow
-		/*
-		 * ApplicationConnection handles the relative sizes for us
-		 * automatically, but we need to take care of possible rounding errors
-		 * (unwanted one pixel gaps)
-		 * 
-		 * This is only needed when there are more than one relatively sized
-		 * widget, and their added percentages equals 100.
-		 * 
-		 * This needs to be fired lazily in order to make it happen after
-		 * ApplicationConnections automatic layout calculations.
-		 */
-		if (relativeSizedWidgets.size() > 1) {
-			int totalPercentage = 0;
-			cumulativeSize = usedSpace;
-			for (Cell cell : relativeSizedWidgets) {
-				totalPercentage += cell.getRelativeSizeInParentDirection();
-			}
-			if (totalPercentage == 100.0) {
-				Timer delay = new Timer() {
-					@Override
-					public void run() {
-						getElement().getStyle().setOverflow(Overflow.HIDDEN);
-						for (Cell cell : relativeSizedWidgets) {
-							cumulativeSize += cell.getSizeInParentDirection();
-						}
-
-						Cell lastCell = relativeSizedWidgets
-								.get(relativeSizedWidgets.size() - 1);
-						Widget w = lastCell.getChildWidget();
-						if (vertical) {
-							String sHeight = w.getElement().getStyle()
-									.getHeight();
-							int oldHeight = Integer.parseInt(sHeight.substring(
-									0, sHeight.length() - 2));
-							if (height > cumulativeSize) {
-								w.setHeight(oldHeight
-										+ (height - cumulativeSize) + "px");
-								if (w instanceof HasWidgets) {
-									client.runDescendentsLayout((HasWidgets) w);
-								}
-							}
-						} else {
-							String sWidth = w.getElement().getStyle()
-									.getWidth();
-							int oldWidth = Integer.parseInt(sWidth.substring(0,
-									sWidth.length() - 2));
-							if (width > cumulativeSize) {
-								w.setWidth(oldWidth + (width - cumulativeSize)
-										+ "px");
-								if (w instanceof HasWidgets) {
-									client.runDescendentsLayout((HasWidgets) w);
-								}
-							}
-						}
-						if (!clip) {
-							getElement().getStyle().clearOverflow();
-						}
-					}
-				};
-				delay.schedule(1);
+		final int count = flex ? 0 : relativeSizedWidgets.size();
+		if (!flex) {
+			// In flex mode the browser has distributed the space, and the
+			// sizes were read by measureCells
+			for (Widget w : getChildren()) {
+				((Cell) w).setAllocatedSize(-1);
 			}
 		}
+		if (count > 0) {
+			final int[] available = new int[count];
+			final float[] percentages = new float[count];
+			for (int i = 0; i < count; i++) {
+				Cell cell = relativeSizedWidgets.get(i);
+				int[] margin = cell.getMeasuredChildMargin();
+				available[i] = (vertical ? height - margin[0] - margin[2]
+						: width - margin[1] - margin[3]) - usedSpace;
+				percentages[i] = cell.getRelativeSizeInParentDirection();
+			}
+			final int[] sizes = PixelDistribution.distribute(available,
+					percentages);
+			for (int i = 0; i < count; i++) {
+				relativeSizedWidgets.get(i).setAllocatedSize(sizes[i]);
+			}
+		}
+
 		if (smart) {
 			for (Widget w : getChildren()) {
-				Cell cell = (Cell) w;
-				client.handleComponentRelativeSize(cell.getChildWidget());
+				handleRelativeSize((Cell) w);
+			}
+		} else {
+			for (Cell cell : relativeSizedWidgets) {
+				handleRelativeSize(cell);
+			}
+		}
+		domModified();
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.RELATIVE_SIZES, start);
+		}
+	}
+
+	/**
+	 * Reads the cell sizes needed for sizing the relative sized children.
+	 * Only reads the DOM.
+	 */
+	private void measureCells() {
+		if (flex) {
+			// Only the relative sized cells, the space used by the others
+			// is left for the browser to subtract
+			beforeDomRead();
+			usedSpace = 0;
+			for (Cell cell : relativeSizedWidgets) {
+				measureCell(cell);
+			}
+		} else if (absolute) {
+			// Only the changed cells, the others have cached sizes
+			measureDirtyCells();
+			usedSpace = 0;
+			for (Widget w : getChildren()) {
+				usedSpace += ((Cell) w).getMeasuredRequiredSize();
 			}
+		} else if (!usedSpaceValid) {
+			updateUsedSpace();
 		}
+		// Otherwise no cell has changed since they were measured, e.g. when
+		// only the attributes of the layout changed
 	}
 
+	/**
+	 * Measures all cells and sums up the space used by them. Only reads the
+	 * DOM.
+	 */
 	private void updateUsedSpace() {
+		beforeDomRead();
 		usedSpace = 0;
 		for (Widget w : getChildren()) {
 			Cell cell = (Cell) w;
-			usedSpace += cell.getRequiredSizeInParentDirection();
+			measureCell(cell);
+			usedSpace += cell.getMeasuredRequiredSize();
 		}
+		usedSpaceValid = true;
 	}
 
-	private Cell getCellForWidget(Widget w, boolean createNew) {
-		for (Widget child : getChildren()) {
-			Cell cell = (Cell) child;
-			if (cell.getChildWidget() == w) {
-				return cell;
-			}
+	/**
+	 * Measures only the given cells and updates usedSpace with the changes
+	 * of their sizes. The other cells keep their previously measured sizes.
+	 * Only reads the DOM.
+	 */
+	private void updateUsedSpace(Set<Paintable> children) {
+		beforeDomRead();
+		for (Paintable p : children) {
+			final Cell cell = getCellForWidget((Widget) p, false);
+			final int oldSize = cell.isMeasured() ? cell
+					.getMeasuredRequiredSize() : 0;
+			measureCell(cell);
+			usedSpace += cell.getMeasuredRequiredSize() - oldSize;
 		}
-		if (createNew) {
-			return new Cell(w, vertical);
+	}
+
+	/**
+	 * Measures the cell. Only reads the DOM.
+	 */
+	private void measureCell(Cell cell) {
+		if (flex) {
+			cell.measureFlex(getTheme());
+		} else if (absolute) {
+			cell.measureAbsolute(getTheme());
 		} else {
-			return null;
+			cell.measure(getTheme(), defaultSizeHint);
+		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.measured();
 		}
 	}
 
-	private void removeChildrenAfter(int pos) {
-		int toRemove = getChildren().size() - pos;
-		while (toRemove-- > 0) {
-			Cell child = (Cell) getChildren().get(pos);
-			remove(child);
-			client.unregisterPaintable((Paintable) child.getChildWidget());
+	/**
+	 * Lets ApplicationConnection size a relative sized child widget into the
+	 * space allocated for it.
+	 */
+	private void handleRelativeSize(Cell cell) {
+		client.handleComponentRelativeSize(cell.getChildWidget());
+		markDirty(cell);
+		if (WeeLayoutStats.isEnabled()) {
+			stats.relativeSizeUpdated();
 		}
 	}
 
+	private Cell getCellForWidget(Widget w, boolean createNew) {
+		Cell cell = widgetToCell.get(w);
+		if (cell == null && createNew) {
+			if (WeeLayoutStats.isEnabled()) {
+				stats.cellCreated();
+			}
+			cell = new Cell(w, vertical);
+			cell.setFlex(flex);
+			cell.setAbsolute(absolute);
+			markDirty(cell);
+		}
+		return cell;
+	}
+
+	@Override
+	public boolean remove(Widget w) {
+		if (!super.remove(w)) {
+			return false;
+		}
+		domModified();
+		usedSpaceValid = false;
+		Cell cell = (Cell) w;
+		// A queued progressive update of the removed child must not be done
+		pendingUIDLByCell.remove(cell);
+		// The widget may already have been moved into a new cell
+		if (widgetToCell.get(cell.getChildWidget()) == cell) {
+			widgetToCell.remove(cell.getChildWidget());
+		}
+		return true;
+	}
+
 	public RenderSpace getAllocatedSpace(Widget child) {
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
 		Cell c = getCellForWidget(child, false);
+		if (!c.isMeasured()) {
+			if (isRendering) {
+				/*
+				 * Don't read the DOM in the middle of rendering the children.
+				 * Estimate without margins and caption now, the final space is
+				 * allocated after the measure phase.
+				 */
+				estimatedAllocations.add(c);
+			} else {
+				beforeDomRead();
+				measureCell(c);
+			}
+		}
 		int captionHeight = 0;
 		if (c.hasCaption() && !vertical)
-			captionHeight = c.getCaptionElement().getOffsetHeight();
-		if (child instanceof VWeeLayout) {
-			return new RenderSpace(vertical ? width : width - usedSpace,
-					(vertical ? height - usedSpace : height) - captionHeight);
-		}
-		ComputedStyle cs = new ComputedStyle(child.getElement());
-		int[] margin = cs.getMargin();
+			captionHeight = c.getMeasuredCaptionHeight();
+		int[] margin = c.getMeasuredChildMargin();
 		int width = this.width - margin[1] - margin[3];
 		int height = this.height - margin[0] - margin[2];
-		return new RenderSpace(vertical ? width : width - usedSpace,
-				(vertical ? height - usedSpace : height) - captionHeight);
+		width = vertical ? width : width - usedSpace;
+		height = (vertical ? height - usedSpace : height) - captionHeight;
+		if (c.getAllocatedSize() >= 0) {
+			// Exact size from updateRelativeSizedWidgets
+			int space = PixelDistribution.spaceFor(c.getAllocatedSize(),
+					c.getRelativeSizeInParentDirection());
+			if (vertical) {
+				height = space;
+			} else {
+				width = space;
+			}
+		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.GET_ALLOCATED_SPACE, start);
+		}
+		return new RenderSpace(width, height);
 	}
 
 	public boolean hasChildComponent(Widget component) {
-		for (Widget w : getChildren()) {
-			Cell cell = (Cell) w;
-			if (cell.getChildWidget() == component) {
-				return true;
-			}
-		}
-		return false;
+		return widgetToCell.containsKey(component);
 	}
 
 	public void replaceChildComponent(Widget oldComponent, Widget newComponent) {
@@ -369,36 +1304,161 @@ public class VWeeLayout extends ComplexPanel implements Container {
 	}
 
 	public boolean requestLayout(Set<Paintable> children) {
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
+		final boolean coordinating = LayoutCoordinator.begin(this);
+		boolean resized = false;
+		final boolean sizeUnchanged;
+		try {
+			sizeUnchanged = doRequestLayout(children);
+		} finally {
+			if (coordinating) {
+				resized = LayoutCoordinator.end();
+			}
+		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.REQUEST_LAYOUT, start);
+		}
+		return sizeUnchanged && !resized;
+	}
+
+	/**
+	 * Handles size changes of the given children reported by a
+	 * {@link LayoutCoordinator} pass.
+	 */
+	void relayoutChildren(Set<Paintable> children) {
+		doRequestLayout(children);
+	}
+
+	private boolean doRequestLayout(Set<Paintable> children) {
+		if (hasPendingChildUpdates()) {
+			// The layout is calculated when the progressive render finishes
+			return true;
+		}
+		boolean relativeSizesChanged = false;
 		for (Paintable p : children) {
 			Cell cell = getCellForWidget((Widget) p, false);
-			cell.updateRelativeSize(client.getRelativeSize((Widget) p));
+			if (cell.updateRelativeSize(client.getRelativeSize((Widget) p))) {
+				relativeSizesChanged = true;
+			}
 			if (!cell.hasRelativeSizeInParentDirection()) {
 				relativeSizedWidgets.remove(cell);
+				cell.setAllocatedSize(-1);
 			}
+			cell.updateFlex(calculatesRelativeSizes());
+			markDirty(cell);
 		}
 		if (smart) {
 			clearComponentSizesInNonParentDirection();
 		}
-		updateUsedSpace();
-		if (!smart) {
-			for (Cell cell : relativeSizedWidgets) {
-				client.handleComponentRelativeSize(cell.getChildWidget());
+
+		// Read phase
+		final boolean calculate = calculatesRelativeSizes();
+		final boolean isBoundary = isLayoutBoundary();
+		int oldWidth = width;
+		int oldHeight = height;
+		if (usedSpaceValid && !flex && !absolute) {
+			// Only the changed children need to be measured
+			final int oldUsedSpace = usedSpace;
+			updateUsedSpace(children);
+			if (!smart && !undefWidth && !undefHeight
+					&& !relativeSizesChanged && usedSpace == oldUsedSpace) {
+				// The layout has a defined size in both directions, and the
+				// relative sized children keep their space. With an
+				// undefined cross size a child may still have changed the
+				// size of the layout, which is measured below.
+				return true;
 			}
+		} else {
+			measureCells();
 		}
-		// For other than undefined size, we need to calculate a bit
-		if (smart || ((vertical && !undefHeight) || (!vertical && !undefWidth))) {
-			int oldWidth = width;
-			int oldHeight = height;
+		if (calculate && !isBoundary) {
 			updateActualSize();
+		}
+
+		// Write phase
+		// For other than undefined size, we need to calculate a bit
+		if (isBoundary) {
+			// The size is known to be unchanged, nothing is passed up
 			updateRelativeSizedWidgets();
-			return (width == oldWidth && height == oldHeight);
+			if (absolute) {
+				positionCells();
+			}
+			if (ApplicationConnection.isDebugMode()) {
+				return verifyLayoutBoundary(oldWidth, oldHeight);
+			}
+			return true;
+		} else if (calculate) {
+			updateRelativeSizedWidgets();
+			final boolean resized = absolute && positionCells();
+			return (width == oldWidth && height == oldHeight && !resized);
 		} else {
+			for (Cell cell : relativeSizedWidgets) {
+				handleRelativeSize(cell);
+			}
+			if (absolute) {
+				positionCells();
+			}
+			domModified();
 			return false;
 		}
 	}
 
+	/**
+	 * A layout boundary handles the size changes of its children without
+	 * passing them to its parent. The server only marks layouts with a
+	 * defined size as boundaries, the size is checked here again in case the
+	 * size was changed by other means.
+	 */
+	private boolean isLayoutBoundary() {
+		if (!boundary) {
+			return false;
+		}
+		if (undefWidth || undefHeight) {
+			if (ApplicationConnection.isDebugMode()) {
+				VConsole.error("WeeLayout " + paintableId
+						+ " is a layout boundary but has an undefined size, "
+						+ "the boundary is ignored");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that the size of a layout boundary really did not change with
+	 * its children. Only used in debug mode, since it reads the size back
+	 * from the DOM.
+	 *
+	 * @return <code>true</code> if the size is unchanged
+	 */
+	private boolean verifyLayoutBoundary(int oldWidth, int oldHeight) {
+		updateActualSize();
+		if (width == oldWidth && height == oldHeight) {
+			return true;
+		}
+		VConsole.error("WeeLayout " + paintableId
+				+ " is a layout boundary, but its size changed from "
+				+ oldWidth + "x" + oldHeight + " to " + width + "x" + height
+				+ " when its children changed");
+		return false;
+	}
+
 	public void updateCaption(Paintable component, UIDL uidl) {
-		getCellForWidget((Widget) component, false).updateCaption(uidl, client);
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
+		final Cell cell = getCellForWidget((Widget) component, false);
+		cell.updateCaption(uidl, client);
+		markDirty(cell);
+		usedSpaceValid = false;
+		domModified();
+		final UIDL pending = pendingUIDLByCell.get(cell);
+		if (pending != null && pending != uidl) {
+			// Not our queued update: the child is updated directly by a
+			// newer response, which must not be overwritten by the queue
+			dropStaleUpdate(cell, uidl);
+		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.UPDATE_CAPTION, start);
+		}
 	}
 
 	private void updateDynamicSizeInfo(UIDL uidl) {
@@ -412,6 +1472,8 @@ public class VWeeLayout extends ComplexPanel implements Container {
 
 	@Override
 	public void setWidth(String w) {
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
+		domModified();
 		String toBeWidth = "";
 		if (w != null && !"".equals(w)) {
 			// Assume pixel values are always passed from ApplicationConnection
@@ -424,16 +1486,26 @@ public class VWeeLayout extends ComplexPanel implements Container {
 			super.setWidth(toBeWidth);
 		} else {
 			super.setWidth("");
+			// Written again by positionCells in absolute mode
+			if (vertical) {
+				absoluteContentCrossSize = -1;
+			} else {
+				absoluteContentSize = -1;
+			}
 		}
 
-		if (!isRendering) {
-			updateActualSize();
-			updateRelativeSizedWidgets();
+		if (!isRendering && !LayoutCoordinator.schedule(this)) {
+			relayout();
+		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.SET_WIDTH, start);
 		}
 	}
 
 	@Override
 	public void setHeight(String h) {
+		final double start = WeeLayoutStats.isEnabled() ? stats.start() : 0;
+		domModified();
 		String toBeHeight = "";
 
 		if (h != null && !"".equals(h)) {
@@ -447,16 +1519,89 @@ public class VWeeLayout extends ComplexPanel implements Container {
 			super.setHeight(toBeHeight);
 		} else {
 			super.setHeight("");
+			// Written again by positionCells in absolute mode
+			if (vertical) {
+				absoluteContentSize = -1;
+			} else {
+				absoluteContentCrossSize = -1;
+			}
 		}
 
 		if (!isRendering) {
-			updateActualSize();
-			updateRelativeSizedWidgets();
+			if (!LayoutCoordinator.schedule(this)) {
+				relayout();
+			}
 			Util.runWebkitOverflowAutoFix(getElement());
 		}
+		if (WeeLayoutStats.isEnabled()) {
+			stats.end(Operation.SET_HEIGHT, start);
+		}
+	}
+
+	/**
+	 * Lays out the children after the size of the layout was changed, as the
+	 * root of a {@link LayoutCoordinator} pass if no pass is running.
+	 */
+	private void relayout() {
+		final boolean coordinating = LayoutCoordinator.begin(this);
+		try {
+			measureAllocation();
+			allocate();
+		} finally {
+			if (coordinating) {
+				LayoutCoordinator.end();
+			}
+		}
+	}
+
+	/**
+	 * Reads the size of the layout after it was changed. Only reads the DOM.
+	 */
+	void measureAllocation() {
+		updateActualSize();
+		if (flex) {
+			measureCells();
+		}
+	}
+
+	/**
+	 * Sizes the children into the space measured by
+	 * {@link #measureAllocation()}.
+	 */
+	void allocate() {
+		updateRelativeSizedWidgets();
+		if (absolute) {
+			positionCells();
+		}
+	}
+
+	/**
+	 * @return the enclosing VWeeLayout if this layout is its direct child,
+	 *         otherwise null
+	 */
+	VWeeLayout getParentLayout() {
+		final Widget cell = getParent();
+		if (cell instanceof Cell && cell.getParent() instanceof VWeeLayout) {
+			return (VWeeLayout) cell.getParent();
+		}
+		return null;
+	}
+
+	boolean hasUndefinedSize() {
+		return undefWidth || undefHeight;
+	}
+
+	int getActualWidth() {
+		return width;
+	}
+
+	int getActualHeight() {
+		return height;
 	}
 
 	private void clearComponentSizesInNonParentDirection() {
+		domModified();
+		usedSpaceValid = false;
 		for (Widget w : getChildren()) {
 			Cell cell = (Cell) w;
 			if (cell.hasRelativeSizeInNonParentDirection()) {
@@ -0,0 +1,318 @@
+package org.vaadin.weelayout.client.ui;
+
+import java.util.ArrayList;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.JsonUtils;
+import com.vaadin.terminal.gwt.client.VConsole;
+
+/**
+ * Performance statistics of one VWeeLayout instance: the number of calls and
+ * the time spent in the main entry points, and counters for the work done in
+ * them.
+ * <p>
+ * The statistics are collected only when the widgetset is compiled with the
+ * <code>weelayout.stats</code> property set to <code>on</code>:
+ *
+ * <pre>
+ * &lt;set-property name="weelayout.stats" value="on" /&gt;
+ * </pre>
+ *
+ * Otherwise {@link #isEnabled()} is a compile time constant
+ * <code>false</code>, and the compiler removes all the instrumentation.
+ * <p>
+ * When enabled, the statistics of all attached layouts are available from
+ * JavaScript through <code>window.weeLayoutStats</code>: <code>get()</code>
+ * returns them as an array of objects, <code>reset()</code> zeroes them and
+ * <code>dump()</code> writes them to the debug console.
+ */
+public class WeeLayoutStats {
+
+	/**
+	 * Replaced with {@link EnabledSwitch} by deferred binding when the
+	 * <code>weelayout.stats</code> property is <code>on</code>.
+	 */
+	public static class Switch {
+		protected boolean isEnabled() {
+			return false;
+		}
+	}
+
+	public static class EnabledSwitch extends Switch {
+		@Override
+		protected boolean isEnabled() {
+			return true;
+		}
+	}
+
+	private static final Switch SWITCH = GWT.create(Switch.class);
+
+	/** The timed operations */
+	public enum Operation {
+		UPDATE_FROM_UIDL("updateFromUIDL"),
+		REQUEST_LAYOUT("requestLayout"),
+		GET_ALLOCATED_SPACE("getAllocatedSpace"),
+		SET_WIDTH("setWidth"),
+		SET_HEIGHT("setHeight"),
+		RELATIVE_SIZES("updateRelativeSizedWidgets"),
+		UPDATE_CAPTION("updateCaption");
+
+		private final String name;
+
+		private Operation(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static final ArrayList<WeeLayoutStats> registry = new ArrayList<WeeLayoutStats>();
+
+	private static boolean exported = false;
+
+	private final VWeeLayout layout;
+
+	private final int[] calls = new int[Operation.values().length];
+	private final double[] totalTime = new double[calls.length];
+	private final double[] maxTime = new double[calls.length];
+
+	private int cellsCreated;
+	private int cellsMoved;
+	private int measurements;
+	private int forcedReflows;
+	private int relativeSizeUpdates;
+
+	/**
+	 * @return <code>true</code> if the statistics are compiled in
+	 */
+	public static boolean isEnabled() {
+		return SWITCH.isEnabled();
+	}
+
+	WeeLayoutStats(VWeeLayout layout) {
+		this.layout = layout;
+	}
+
+	/**
+	 * @return the start time to pass to {@link #end(Operation, double)}
+	 */
+	double start() {
+		return Duration.currentTimeMillis();
+	}
+
+	/**
+	 * Records one call of the operation that started at the given time.
+	 */
+	void end(Operation operation, double start) {
+		final double time = Duration.currentTimeMillis() - start;
+		final int i = operation.ordinal();
+		calls[i]++;
+		totalTime[i] += time;
+		if (time > maxTime[i]) {
+			maxTime[i] = time;
+		}
+	}
+
+	void cellCreated() {
+		cellsCreated++;
+	}
+
+	void cellMoved() {
+		cellsMoved++;
+	}
+
+	void measured() {
+		measurements++;
+	}
+
+	void forcedReflow() {
+		forcedReflows++;
+	}
+
+	/**
+	 * Counts a relative size update of a child widget, which may make the
+	 * child lay out its own descendants.
+	 */
+	void relativeSizeUpdated() {
+		relativeSizeUpdates++;
+	}
+
+	/**
+	 * @return the number of calls of the operation since the last reset
+	 */
+	public int getCalls(Operation operation) {
+		return calls[operation.ordinal()];
+	}
+
+	/**
+	 * @return the total time spent in the operation in milliseconds, including
+	 *         nested operations
+	 */
+	public double getTotalTime(Operation operation) {
+		return totalTime[operation.ordinal()];
+	}
+
+	/**
+	 * @return the longest single call of the operation in milliseconds
+	 */
+	public double getMaxTime(Operation operation) {
+		return maxTime[operation.ordinal()];
+	}
+
+	public int getCellsCreated() {
+		return cellsCreated;
+	}
+
+	public int getCellsMoved() {
+		return cellsMoved;
+	}
+
+	/**
+	 * @return the number of times the layout or one of its cells was measured
+	 */
+	public int getMeasurements() {
+		return measurements;
+	}
+
+	public int getForcedReflows() {
+		return forcedReflows;
+	}
+
+	/**
+	 * @return the number of times the relative size of a child widget was
+	 *         recalculated
+	 */
+	public int getRelativeSizeUpdates() {
+		return relativeSizeUpdates;
+	}
+
+	public void reset() {
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = 0;
+			totalTime[i] = 0;
+			maxTime[i] = 0;
+		}
+		cellsCreated = 0;
+		cellsMoved = 0;
+		measurements = 0;
+		forcedReflows = 0;
+		relativeSizeUpdates = 0;
+	}
+
+	/**
+	 * @return the statistics as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\"id\":");
+		json.append(JsonUtils.escapeValue(layout.paintableId));
+		for (Operation operation : Operation.values()) {
+			final int i = operation.ordinal();
+			json.append(",\"").append(operation).append("\":{\"calls\":")
+					.append(calls[i]).append(",\"total\":")
+					.append(totalTime[i]).append(",\"max\":")
+					.append(maxTime[i]).append("}");
+		}
+		json.append(",\"cellsCreated\":").append(cellsCreated);
+		json.append(",\"cellsMoved\":").append(cellsMoved);
+		json.append(",\"measurements\":").append(measurements);
+		json.append(",\"forcedReflows\":").append(forcedReflows);
+		json.append(",\"relativeSizeUpdates\":").append(relativeSizeUpdates);
+		return json.append("}").toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("WeeLayout ");
+		s.append(layout.paintableId).append(":");
+		for (Operation operation : Operation.values()) {
+			final int i = operation.ordinal();
+			if (calls[i] > 0) {
+				s.append(" ").append(operation).append(" ").append(calls[i])
+						.append("x ").append(Math.round(totalTime[i]))
+						.append("ms (max ").append(Math.round(maxTime[i]))
+						.append("ms),");
+			}
+		}
+		s.append(" cells created ").append(cellsCreated);
+		s.append(", moved ").append(cellsMoved);
+		s.append(", measurements ").append(measurements);
+		s.append(", forced reflows ").append(forcedReflows);
+		s.append(", relative size updates ").append(relativeSizeUpdates);
+		return s.toString();
+	}
+
+	/**
+	 * Makes the statistics available from JavaScript until
+	 * {@link #unregister()} is called.
+	 */
+	void register() {
+		if (!registry.contains(this)) {
+			registry.add(this);
+		}
+		if (!exported) {
+			exported = true;
+			exportRegistry();
+		}
+	}
+
+	void unregister() {
+		registry.remove(this);
+	}
+
+	/**
+	 * Writes the statistics of all registered layouts to the debug console.
+	 */
+	public static void dump() {
+		for (WeeLayoutStats stats : registry) {
+			VConsole.log(stats.toString());
+		}
+	}
+
+	/**
+	 * Resets the statistics of all registered layouts.
+	 */
+	public static void resetAll() {
+		for (WeeLayoutStats stats : registry) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * @return the statistics of all registered layouts as a JSON array
+	 */
+	public static String getAllAsJson() {
+		StringBuilder json = new StringBuilder("[");
+		for (WeeLayoutStats stats : registry) {
+			if (json.length() > 1) {
+				json.append(",");
+			}
+			json.append(stats.toJson());
+		}
+		return json.append("]").toString();
+	}
+
+	private static JavaScriptObject parse(String json) {
+		return JsonUtils.safeEval(json);
+	}
+
+	private static native void exportRegistry()
+	/*-{
+		$wnd.weeLayoutStats = {
+			get: $entry(function() {
+				return @org.vaadin.weelayout.client.ui.WeeLayoutStats::parse(Ljava/lang/String;)(
+					@org.vaadin.weelayout.client.ui.WeeLayoutStats::getAllAsJson()());
+			}),
+			reset: $entry(function() {
+				@org.vaadin.weelayout.client.ui.WeeLayoutStats::resetAll()();
+			}),
+			dump: $entry(function() {
+				@org.vaadin.weelayout.client.ui.WeeLayoutStats::dump()();
+			})
+		};
+	}-*/;
+}
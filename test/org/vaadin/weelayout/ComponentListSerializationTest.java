@@ -0,0 +1,210 @@
+package org.vaadin.weelayout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.Test;
+import org.vaadin.weelayout.WeeLayout.Direction;
+
+import com.vaadin.ui.Alignment;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+
+/**
+ * Round trips of the serialized form of {@link ComponentList}, alone and
+ * inside nested {@link WeeLayout}s.
+ */
+public class ComponentListSerializationTest {
+
+    private static final Alignment[] ALIGNMENTS = { Alignment.TOP_LEFT,
+            Alignment.MIDDLE_CENTER, Alignment.BOTTOM_RIGHT };
+
+    /**
+     * The fields WeeLayout kept its children in before {@link ComponentList},
+     * written with the default serialization. The baseline had no size
+     * hints, so only the order and the alignments are copied.
+     */
+    @SuppressWarnings("serial")
+    private static class BaselineForm implements Serializable {
+
+        final LinkedList<Component> components = new LinkedList<Component>();
+        final Map<Component, Alignment> componentToAlignment = new HashMap<Component, Alignment>();
+
+        BaselineForm(ComponentList list) {
+            for (Component c : list) {
+                components.add(c);
+                Alignment alignment = list.getAlignment(c);
+                if (alignment != null) {
+                    componentToAlignment.put(c, alignment);
+                }
+            }
+        }
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T o) throws Exception {
+        return (T) deserialize(serialize(o));
+    }
+
+    private static Alignment alignmentOf(int i) {
+        return i % 2 == 0 ? ALIGNMENTS[i % ALIGNMENTS.length] : null;
+    }
+
+    private static int sizeHintOf(int i) {
+        return i % 3 == 0 ? i : -1;
+    }
+
+    private static ComponentList createList(int size) {
+        ComponentList list = new ComponentList();
+        for (int i = 0; i < size; i++) {
+            Label label = new Label(String.valueOf(i));
+            list.add(label);
+            list.setAlignment(label, alignmentOf(i));
+            list.setSizeHint(label, sizeHintOf(i));
+        }
+        return list;
+    }
+
+    private static void assertList(ComponentList list, int size) {
+        assertEquals(size, list.size());
+        for (int i = 0; i < size; i++) {
+            Component c = list.get(i);
+            assertEquals(String.valueOf(i), ((Label) c).getValue());
+            assertEquals(i, list.indexOf(c));
+            assertEquals(alignmentOf(i), list.getAlignment(c));
+            assertEquals(sizeHintOf(i), list.getSizeHint(c));
+        }
+    }
+
+    @Test
+    public void nestedLayoutsKeepOrderAlignmentsAndSizeHints()
+            throws Exception {
+        WeeLayout root = new WeeLayout(Direction.VERTICAL);
+        for (int i = 0; i < 10; i++) {
+            WeeLayout layout = new WeeLayout(Direction.HORIZONTAL);
+            for (int j = 0; j < 50; j++) {
+                Label label = new Label(i + "/" + j);
+                layout.addComponent(label);
+                if (alignmentOf(j) != null) {
+                    layout.setComponentAlignment(label, alignmentOf(j));
+                }
+                layout.setSizeHint(label, sizeHintOf(j));
+            }
+            root.addComponent(layout);
+        }
+
+        WeeLayout copy = roundTrip(root);
+
+        assertEquals(10, copy.size());
+        for (int i = 0; i < 10; i++) {
+            WeeLayout layout = (WeeLayout) copy.getComponent(i);
+            assertSame(copy, layout.getParent());
+            assertEquals(i, copy.getComponentIndex(layout));
+            assertEquals(50, layout.size());
+            for (int j = 0; j < 50; j++) {
+                Label label = (Label) layout.getComponent(j);
+                assertEquals(i + "/" + j, label.getValue());
+                assertSame(layout, label.getParent());
+                assertEquals(j, layout.getComponentIndex(label));
+                Alignment expected = alignmentOf(j);
+                assertEquals(expected == null ? Alignment.TOP_LEFT : expected,
+                        layout.getComponentAlignment(label));
+                assertEquals(sizeHintOf(j), layout.getSizeHint(label));
+            }
+        }
+    }
+
+    @Test
+    public void serializedFormIsSmallerThanBaselineForm() throws Exception {
+        // The baseline had no size hints, so none are set here either
+        ComponentList list = new ComponentList();
+        for (int i = 0; i < 1000; i++) {
+            Label label = new Label(String.valueOf(i));
+            list.add(label);
+            list.setAlignment(label, alignmentOf(i));
+        }
+        int compact = serialize(list).length;
+        int old = serialize(new BaselineForm(list)).length;
+        assertTrue("Serialized " + compact + " B, baseline form " + old + " B",
+                compact < old);
+    }
+
+    @Test
+    public void serializedAgainBeforeUse() throws Exception {
+        // The second round trip writes the arrays read by the first one
+        ComponentList list = roundTrip(roundTrip(createList(100)));
+        assertList(list, 100);
+    }
+
+    @Test
+    public void clearBeforeSlotsRebuilt() throws Exception {
+        ComponentList list = roundTrip(createList(100));
+        list.clear();
+        assertEquals(0, list.size());
+        Label label = new Label("new");
+        list.add(label);
+        assertEquals(0, list.indexOf(label));
+        assertEquals(null, list.getAlignment(label));
+        assertEquals(-1, list.getSizeHint(label));
+        ComponentList copy = roundTrip(list);
+        assertEquals(1, copy.size());
+        assertEquals("new", ((Label) copy.get(0)).getValue());
+    }
+
+    @Test
+    public void addBeforeSlotsRebuilt() throws Exception {
+        ComponentList list = roundTrip(createList(100));
+        Label first = new Label("first");
+        list.add(0, first);
+        assertEquals(101, list.size());
+        assertEquals(0, list.indexOf(first));
+        for (int i = 0; i < 100; i++) {
+            Component c = list.get(i + 1);
+            assertEquals(i + 1, list.indexOf(c));
+            assertEquals(alignmentOf(i), list.getAlignment(c));
+            assertEquals(sizeHintOf(i), list.getSizeHint(c));
+        }
+    }
+
+    @Test
+    public void removeBeforeSlotsRebuilt() throws Exception {
+        ComponentList list = roundTrip(createList(100));
+        list.remove(0);
+        assertEquals(99, list.size());
+        for (int i = 0; i < 99; i++) {
+            Component c = list.get(i);
+            assertEquals(String.valueOf(i + 1), ((Label) c).getValue());
+            assertEquals(i, list.indexOf(c));
+            assertEquals(alignmentOf(i + 1), list.getAlignment(c));
+        }
+    }
+}